@@ -1,5 +1,7 @@
 package intellip.flwr.ML;
 
+import intellip.flwr.util.Log;
+
 public class GDScalarParameterOptimizer {
 	
 	private int dimensionality;
@@ -59,16 +61,13 @@ public class GDScalarParameterOptimizer {
 				weighted_error      += error * ithFeatureSet.get(j);	
 				currentCost         += error * error;
 				
-				// TODO LOGGING
-				// System.out.println("[" + j + ", " + i + "] For Theta(" + j + "), Row = " + i + ", Feature: " + ithFeatureSet + ", Theta: " + theta + ", Response: " + ithResponse + ", hypo = " + hypo + ", err = " + error + ", weighted_err = " + weighted_error);
-				// System.out.println("theta = " + j + ", row = " + i + ", hypo = " + hypo + ", error = " + error + ", weighted err = " + weighted_error);
+				Log.log(Log.VERBOSE_DATA, "theta = {}, row = {}, error = {}", j, i, error);
 			}   // end of 'i'
 			
 			double adjustment        = c * weighted_error;
 			currentCost              = currentCost / (2 * members);
 			
-			// TODO LOGGING
-			// System.out.println("alpha = " + alpha + ", m = " + members + ", c = " + c + ", weighted_err = " + weighted_error + ", adj = " + adjustment);
+			Log.log(Log.VERBOSE, "theta = {}, weighted err = {}, adj = {}", j, weighted_error, adjustment);
 			
 			new_theta.add(theta.get(j) - adjustment );
 		} // end of 'j'
@@ -1,5 +1,7 @@
 package intellip.flwr.ML;
 
+import intellip.flwr.util.Log;
+
 public class GradientDescent {
 
 	public static void main(String[] args) {
@@ -25,7 +27,7 @@ public class GradientDescent {
 				Tuple new_theta = new Tuple(3);
 				new_theta = engine.optimize(theta);
 				theta = new_theta;
-				System.out.println(engine.GetCurrentCost());
+				Log.log(Log.NORMAL, "Iteration {}, cost = {}", 10 - iteration, engine.GetCurrentCost());
 				iteration--;
 			}
 			System.out.println(theta);
@@ -0,0 +1,99 @@
+package intellip.flwr.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>A file read and written block by block through a <tt>BlockStorage</tt>, for classes
+ * outside this package keeping large arrays in a file, e.g. <tt>LargeDoubleMatrix</tt>.
+ * Block <tt>i</tt> holds the <tt>blockSize</tt> bytes of the file starting at
+ * <tt>i * blockSize</tt>, the last one only the bytes up to <tt>length</tt>; the blocks are
+ * there from the start and loaded the first time they are touched.</p>
+ *
+ * <p>Any number of threads can read and write the blocks, the file does not lock them.
+ * Blocks which are not memory maps are written back by <tt>force()</tt> and
+ * <tt>close()</tt>, and are all kept in memory until then unless the file is opened with
+ * a maximum of blocks. Beyond that maximum it drops the blocks not touched lately, writing
+ * back the ones taken by <tt>blockForWrite()</tt> and freeing them right away. Such a file
+ * must hence be used by one thread at a time, which keeps no block across calls.</p>
+ */
+public final class BlockFile implements Closeable {
+
+	private final RandomAccessFile file;
+	private final MapTable         blocks;
+	private final long             blockSize;
+
+	/**
+	 * Opens the file, or creates it, with the blocks covering its first <tt>length</tt> bytes.
+	 * A new file grows to <tt>length</tt> bytes at most as the blocks are written.
+	 */
+	public BlockFile(String fileName, long length, long blockSize, BlockStorage storage) throws IOException {
+		this(fileName, length, blockSize, storage, 0);
+	}
+
+	/**
+	 * Opens the file like <tt>BlockFile(fileName, length, blockSize, storage)</tt>, keeping at
+	 * most <tt>maxBlocks</tt> blocks in memory (0 for no limit), except with <tt>MEMORY</tt>
+	 * storage which loads them all.
+	 */
+	public BlockFile(String fileName, long length, long blockSize, BlockStorage storage, int maxBlocks) throws IOException {
+		this.blockSize = blockSize;
+		file   = new RandomAccessFile(fileName, "rw");
+		blocks = new MapTable(file.getChannel(), FileChannel.MapMode.READ_WRITE, 0, blockSize, length, maxBlocks, storage, null, true);
+		try {
+			blocks.addUnmapped((int) ((length + blockSize - 1) / blockSize));
+		}
+		catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns block <tt>i</tt>, shorter than <tt>blockSize</tt> if it is the last one. Its
+	 * position and limit are shared, use absolute gets and puts.
+	 */
+	public ByteBuffer block(int i) throws IOException {
+		return blocks.get(i);
+	}
+
+	/**
+	 * Returns block <tt>i</tt> like <tt>block()</tt>, to be written. A file with a maximum of
+	 * blocks only writes back the blocks taken this way when it drops them.
+	 */
+	public ByteBuffer blockForWrite(int i) throws IOException {
+		return blocks.getForWrite(i);
+	}
+
+	public long getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Returns the number of blocks.
+	 */
+	public int size() {
+		return blocks.size();
+	}
+
+	/**
+	 * Forces every block touched so far to the disk.
+	 */
+	public void force() throws IOException {
+		for (int i = 0; i < blocks.size(); i++)
+			if (blocks.getIfMapped(i) != null) blocks.force(i);
+		file.getChannel().force(false);                // the blocks dropped meanwhile
+	}
+
+	public void close() throws IOException {
+		try {
+			blocks.release();
+		}
+		finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package intellip.flwr.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import sun.misc.Cleaner;
+import sun.nio.ch.DirectBuffer;
+
+/**
+ * <p>How the blocks of a cache file are held in memory. Every cache reads and writes its
+ * files block by block through a table of blocks (refer <tt>MapTable</tt>), and the storage
+ * decides what a block is:</p>
+ * <pre>
+ *   MMAP     a memory map of the block (default). Writes go straight to the page cache and
+ *            are seen by other processes mapping the file, nothing needs to be written back.
+ *   CHANNEL  a direct buffer filled by a positional FileChannel.read() the first time the
+ *            block is touched. Touching a block costs one system call but no page faults or
+ *            TLB entries for the whole file, which suits very large files read at random.
+ *   MEMORY   a direct buffer, like CHANNEL, but all the blocks of the file are read in one go
+ *            when it is opened. Suits small files that can sit in memory as a whole.
+ * </pre>
+ * <p>The buffers of CHANNEL and MEMORY are written back to the file with positional
+ * <tt>FileChannel.write()</tt> calls when the cache is committed or closed, not before, so other
+ * processes do not see the writes of a cache using them until then. A table of a file opened
+ * for writing hence keeps all the buffers it loaded; a read-only table of CHANNEL blocks keeps
+ * at most as many as the table allows (e.g. <tt>withMaxMappedBlocks()</tt>) and drops the
+ * coldest ones beyond that, the same way maps are dropped. So does a <tt>BlockFile</tt> opened
+ * with a maximum of blocks, which writes a buffer back before dropping it.</p>
+ *
+ * <p>Dropped buffers are not reused for other blocks: concurrent readers read the buffers
+ * without locking and may still be reading a dropped one. They are freed by the garbage
+ * collector, like dropped maps, except those of a <tt>BlockFile</tt>, which is used by one
+ * thread at a time and frees them right away.</p>
+ */
+public abstract class BlockStorage {
+
+	public static final BlockStorage MMAP    = new Mapped();
+	public static final BlockStorage CHANNEL = new Positional("CHANNEL");
+	public static final BlockStorage MEMORY  = new Positional("MEMORY");
+
+	private final String name;
+
+	// only the storages above
+	BlockStorage(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the block of <tt>size</tt> bytes of the file starting at <tt>position</tt>.
+	 */
+	abstract ByteBuffer load(FileChannel channel, FileChannel.MapMode mode, long position, long size) throws IOException;
+
+	/**
+	 * Writes the block back to the file and forces it to the disk.
+	 */
+	abstract void force(FileChannel channel, long position, ByteBuffer block) throws IOException;
+
+	/**
+	 * Whether writes to a block reach the file without being written back, i.e. whether a
+	 * block can be dropped and other processes see the writes right away.
+	 */
+	abstract boolean writesThrough();
+
+	/**
+	 * Whether all the blocks of a file are loaded when it is opened.
+	 */
+	boolean loadsEagerly() {
+		return this == MEMORY;
+	}
+
+	/**
+	 * Writes the block back to the file, nothing to do if the storage writes through.
+	 */
+	void store(FileChannel channel, long position, ByteBuffer block) throws IOException {
+		if (writesThrough()) return;
+		ByteBuffer b = block.duplicate();
+		b.clear();
+		while (b.hasRemaining()) channel.write(b, position + b.position());
+	}
+
+	/**
+	 * Frees the memory of the block right away. It must not be used afterwards.
+	 */
+	void free(ByteBuffer block) {
+		if (block == null) return;
+		Cleaner cleaner = ((DirectBuffer) block).cleaner();
+		if (cleaner != null) cleaner.clean();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	private static final class Mapped extends BlockStorage {
+
+		Mapped() {
+			super("MMAP");
+		}
+
+		ByteBuffer load(FileChannel channel, FileChannel.MapMode mode, long position, long size) throws IOException {
+			return channel.map(mode, position, size);
+		}
+
+		void force(FileChannel channel, long position, ByteBuffer block) {
+			((java.nio.MappedByteBuffer) block).force();
+		}
+
+		boolean writesThrough() {
+			return true;
+		}
+	}
+
+	private static final class Positional extends BlockStorage {
+
+		Positional(String name) {
+			super(name);
+		}
+
+		ByteBuffer load(FileChannel channel, FileChannel.MapMode mode, long position, long size) throws IOException {
+			ByteBuffer b = ByteBuffer.allocateDirect((int) size);
+			while (b.hasRemaining())
+				if (channel.read(b, position + b.position()) < 0) break;   // past the end of the file is all zero
+			b.clear();
+			return b;
+		}
+
+		void force(FileChannel channel, long position, ByteBuffer block) throws IOException {
+			store(channel, position, block);
+			channel.force(false);
+		}
+
+		boolean writesThrough() {
+			return false;
+		}
+	}
+}
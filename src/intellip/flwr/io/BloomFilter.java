@@ -0,0 +1,126 @@
+package intellip.flwr.io;
+
+import intellip.flwr.util.Base;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>A persistent Bloom filter over 64 bit hashes of keys, kept in a memory mapped file.
+ * <tt>mightContain()</tt> returning false means the key was never added; returning true means
+ * it probably was, wrong with the false positive rate the filter was sized for.</p>
+ *
+ * <p>For <tt>n</tt> expected keys and false positive rate <tt>p</tt> the filter has
+ * <tt>m = -n ln(p) / (ln 2)^2</tt> bits and sets <tt>k = m/n ln 2</tt> of them for every
+ * key (B. H. Bloom, 1970). The <tt>k</tt> bits are derived from the one hash of the key by
+ * double hashing, <tt>h1 + i * h2</tt>, so the key is hashed only once. Adding more keys than
+ * expected raises the false positive rate. Keys can not be removed.</p>
+ *
+ * <p>The file is a 64 byte header - magic, bits, k - followed by the bits, mapped in blocks
+ * of <tt>blockSize</tt> bytes through a <tt>MapTable</tt>. The filter is not thread safe,
+ * its owner serializes the calls.</p>
+ */
+final class BloomFilter implements Closeable {
+
+	private static final long MAGIC       = 0x464C5752424C4D00L | 1;   // "FLWRBLM", version 1
+	private static final int  HEADER_SIZE = 64;
+	private static final int  H_BITS      = 8;
+	private static final int  H_HASHES    = 16;
+
+	private final RandomAccessFile file;
+	private final MapTable         maps;
+	private final long             blockSize;
+	private final long             bits;            // multiple of 8 * blockSize
+	private final int              hashes;          // bits set for every key
+
+	/**
+	 * Returns whether the filter file exists.
+	 */
+	static boolean exists(String fileName) {
+		return Base.isValidPath(fileName);
+	}
+
+	/**
+	 * Opens the filter in the file, or creates an empty one sized for the expected number of
+	 * keys and the false positive rate. The sizes are ignored if the file exists.
+	 */
+	BloomFilter(String fileName, long blockSize, long expectedKeys, double falsePositiveRate) throws IOException {
+
+		boolean exists = Base.isValidPath(fileName);
+		this.blockSize = blockSize;
+		file = new RandomAccessFile(fileName, "rw");
+		MappedByteBuffer header = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		maps = new MapTable(file.getChannel(), FileChannel.MapMode.READ_WRITE, HEADER_SIZE, blockSize, 0);
+
+		// the header is only written here, unmap it right away
+		try {
+			if (exists) {
+				if (header.getLong(0) != MAGIC) {
+					file.close();
+					throw new IOException("Bloom filter " + fileName + " has an unsupported layout");
+				}
+				bits   = header.getLong(H_BITS);
+				hashes = (int) header.getLong(H_HASHES);
+			}
+			else {
+				if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+					file.close();
+					throw new IllegalArgumentException("Invalid false positive rate: " + falsePositiveRate);
+				}
+				long n     = Math.max(1, expectedKeys);
+				long m     = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+				long block = 8 * blockSize;
+				bits   = (m + block - 1) / block * block;
+				hashes = (int) Math.max(1, Math.round((double) m / n * Math.log(2)));
+				file.setLength(HEADER_SIZE + bits / 8);     // all bits clear
+				header.putLong(H_BITS,   bits);
+				header.putLong(H_HASHES, hashes);
+				header.putLong(0,        MAGIC);
+			}
+		}
+		finally {
+			BlockStorage.MMAP.free(header);
+		}
+		maps.addUnmapped((int) (bits / 8 / blockSize));
+	}
+
+	/**
+	 * Adds the key of the hash.
+	 */
+	void add(long hash) throws IOException {
+		long h2 = _second(hash);
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((hash + i * h2) & Long.MAX_VALUE) % bits;
+			ByteBuffer m = maps.get((int) (bit / 8 / blockSize));
+			int o = (int) (bit / 8 % blockSize);
+			m.put(o, (byte) (m.get(o) | 1 << (bit & 7)));
+		}
+	}
+
+	/**
+	 * Returns false if the key of the hash was never added.
+	 */
+	boolean mightContain(long hash) throws IOException {
+		long h2 = _second(hash);
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((hash + i * h2) & Long.MAX_VALUE) % bits;
+			ByteBuffer m = maps.get((int) (bit / 8 / blockSize));
+			if ((m.get((int) (bit / 8 % blockSize)) & 1 << (bit & 7)) == 0) return false;
+		}
+		return true;
+	}
+
+	public void close() throws IOException {
+		maps.release();
+		file.close();
+	}
+
+	// second hash for double hashing, odd so that the k bits are distinct for small filters too
+	private static long _second(long hash) {
+		return Long.rotateLeft(hash * 0x9E3779B97F4A7C15L, 32) | 1;
+	}
+}
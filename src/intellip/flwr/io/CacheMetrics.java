@@ -0,0 +1,144 @@
+package intellip.flwr.io;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>The metrics of one cache, registered with the platform MBean server as
+ * <tt>intellip.flwr.io:type=&lt;class of the cache&gt;,name=&lt;name of the cache&gt;</tt>
+ * for as long as the cache is open (refer <tt>IndexCache.Builder.withMetrics()</tt>,
+ * <tt>ConstWidthCache.setMetricsEnabled()</tt> and <tt>LruCache.enableMetrics()</tt>).</p>
+ *
+ * <p>For puts and gets it keeps a latency histogram, refer <tt>LatencyHistogram</tt>, and
+ * the bytes written and read. Records spanning more than one block add the blocks after
+ * the first to the blocks crossed. Every block mapped (or loaded, refer
+ * <tt>BlockStorage</tt>) counts as a map created. Recording neither locks nor allocates,
+ * the counters are <tt>LongAdder</tt>s whose cells are created once under contention, so
+ * metrics can stay on in production; what they cost is mostly the two
+ * <tt>System.nanoTime()</tt> calls around the operation.</p>
+ */
+public final class CacheMetrics implements CacheMetricsMBean, Closeable {
+
+	private static final String DOMAIN = "intellip.flwr.io";
+
+	private final ObjectName       objectName;
+	private final DoubleSupplier   hitRatio;        // null if the cache has none
+	private final LatencyHistogram puts = new LatencyHistogram();
+	private final LatencyHistogram gets = new LatencyHistogram();
+	private final LongAdder        bytesWritten  = new LongAdder();
+	private final LongAdder        bytesRead     = new LongAdder();
+	private final LongAdder        records       = new LongAdder();   // put or got, with or without latency
+	private final LongAdder        blocksCrossed = new LongAdder();
+	private final LongAdder        mapsCreated   = new LongAdder();
+	private final LongAdder        mappedBytes   = new LongAdder();
+
+	private CacheMetrics(ObjectName objectName, DoubleSupplier hitRatio) {
+		this.objectName = objectName;
+		this.hitRatio   = hitRatio;
+	}
+
+	/**
+	 * Creates the metrics of a cache and registers them over JMX.
+	 * @param type String the class of the cache
+	 * @param name String the name of the cache, unique for the type
+	 * @param hitRatio DoubleSupplier of the hit ratio of the cache, <tt>null</tt> if it has none
+	 * @throws IllegalStateException if the metrics can not be registered, e.g. the name is taken
+	 */
+	static CacheMetrics register(String type, String name, DoubleSupplier hitRatio) {
+		try {
+			ObjectName   objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+			CacheMetrics metrics    = new CacheMetrics(objectName, hitRatio);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+			return metrics;
+		}
+		catch (JMException e) {
+			throw new IllegalStateException("Can not register the metrics of " + type + " " + name, e);
+		}
+	}
+
+	/**
+	 * Records a put taking <tt>nanos</tt> nanoseconds.
+	 */
+	void recordPut(long nanos, long bytes, long crossed) {
+		puts.record(nanos);
+		recordWrite(bytes, crossed);
+	}
+
+	/**
+	 * Records a record written without its own latency, e.g. as part of a batch.
+	 */
+	void recordWrite(long bytes, long crossed) {
+		bytesWritten.add(bytes);
+		records.increment();
+		if (crossed > 0) blocksCrossed.add(crossed);
+	}
+
+	/**
+	 * Records a get taking <tt>nanos</tt> nanoseconds.
+	 */
+	void recordGet(long nanos, long bytes, long crossed) {
+		gets.record(nanos);
+		bytesRead.add(bytes);
+		records.increment();
+		if (crossed > 0) blocksCrossed.add(crossed);
+	}
+
+	/**
+	 * Records a block of <tt>bytes</tt> bytes mapped or loaded.
+	 */
+	void recordMap(long bytes) {
+		mapsCreated.increment();
+		mappedBytes.add(bytes);
+	}
+
+	public long   getPutCount()       { return puts.count(); }
+	public double getPutMeanMicros()  { return puts.mean() / 1e3; }
+	public double getPutP50Micros()   { return puts.quantile(0.5) / 1e3; }
+	public double getPutP99Micros()   { return puts.quantile(0.99) / 1e3; }
+	public double getPutP999Micros()  { return puts.quantile(0.999) / 1e3; }
+	public double getPutMaxMicros()   { return puts.max() / 1e3; }
+
+	public long   getGetCount()       { return gets.count(); }
+	public double getGetMeanMicros()  { return gets.mean() / 1e3; }
+	public double getGetP50Micros()   { return gets.quantile(0.5) / 1e3; }
+	public double getGetP99Micros()   { return gets.quantile(0.99) / 1e3; }
+	public double getGetP999Micros()  { return gets.quantile(0.999) / 1e3; }
+	public double getGetMaxMicros()   { return gets.max() / 1e3; }
+
+	public long   getBytesWritten()   { return bytesWritten.sum(); }
+	public long   getBytesRead()      { return bytesRead.sum(); }
+	public long   getMapsCreated()    { return mapsCreated.sum(); }
+	public long   getMappedBytes()    { return mappedBytes.sum(); }
+	public long   getBlocksCrossed()  { return blocksCrossed.sum(); }
+
+	public double getBlocksCrossedPerRecord() {
+		long n = records.sum();
+		return n == 0 ? 0 : (double) blocksCrossed.sum() / n;
+	}
+
+	/**
+	 * Returns the hit ratio of the in-memory cache of the cache, <tt>NaN</tt> if it has none.
+	 */
+	public double getHitRatio() {
+		return hitRatio == null ? Double.NaN : hitRatio.getAsDouble();
+	}
+
+	/**
+	 * Unregisters the metrics from JMX, they keep counting if the cache is still used.
+	 */
+	public void close() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+		}
+		catch (JMException e) {
+			// unregistered by somebody else meanwhile
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package intellip.flwr.io;
+
+/**
+ * The attributes of a <tt>CacheMetrics</tt> as seen over JMX. Latencies are in microseconds.
+ */
+public interface CacheMetricsMBean {
+
+	long   getPutCount();
+	double getPutMeanMicros();
+	double getPutP50Micros();
+	double getPutP99Micros();
+	double getPutP999Micros();
+	double getPutMaxMicros();
+
+	long   getGetCount();
+	double getGetMeanMicros();
+	double getGetP50Micros();
+	double getGetP99Micros();
+	double getGetP999Micros();
+	double getGetMaxMicros();
+
+	long   getBytesWritten();
+	long   getBytesRead();
+	long   getMapsCreated();
+	long   getMappedBytes();
+	long   getBlocksCrossed();
+	double getBlocksCrossedPerRecord();
+	double getHitRatio();
+}
@@ -0,0 +1,239 @@
+package intellip.flwr.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Block-level compressed storage behind the data cache of a compressed <tt>IndexCache</tt>.</p>
+ *
+ * <p>The bytes appended to the store form one logical, uncompressed stream which is cut into
+ * blocks of <tt>blockSize</tt> bytes. The block being filled is kept in memory. Once it is full,
+ * it is compressed with <tt>java.util.zip.Deflater</tt> and appended to the data file, right
+ * after the previous compressed block. A directory file keeps the end offset of every compressed
+ * block in the data file (8 byte per block), so the <tt>k</tt>th block is found at
+ * <tt>[end(k - 1), end(k))</tt> without scanning. On close, the partially filled last block is
+ * compressed and stored like any other block. It stays as it is when the store is opened again,
+ * which starts a new block: the rest of the stored one is left unused and reads as zeros, but
+ * nothing that was stored is rewritten, so a crash can not lose it.</p>
+ *
+ * <p>Reading a range of the logical stream decompresses the blocks it touches. The most recently
+ * decompressed blocks are kept in a small <tt>LruCache</tt>, so reading neighbouring items does
+ * not decompress the same block again and again.</p>
+ *
+ * <p>All public methods are synchronized.</p>
+ */
+final class CompressedBlockStore {
+
+	private final RandomAccessFile dirFile;          // end offset of each compressed block
+	private final FileChannel      channel;          // of the data file - compressed blocks, back to back
+	private final int              blockSize;        // uncompressed size of one block
+	private final boolean          readOnly;         // opened read-only, nothing is ever written
+
+	private final Deflater         deflater;
+	private final Inflater         inflater;
+	private final LruCache<Long, byte[]> blocks;     // recently decompressed blocks
+
+	private long[] blockEnds = new long[16];         // end offset of each compressed block in data file
+	private long   blockCount;                       // number of compressed blocks
+	private byte[] pending;                          // the block being filled, not compressed yet
+	private int    pendingLength;                    // bytes used in pending
+	private int    syncedLength;                     // bytes of pending stored by the last sync()
+	private byte[] compressed = new byte[0];         // scratch space for compressed blocks
+
+	/**
+	 * Opens a store on the given files. If the directory file is not empty the store continues
+	 * with a new block after the last one stored, otherwise it starts empty.
+	 * @param dataFile file to store the compressed blocks in
+	 * @param dirName full name of the block directory file
+	 * @param blockSize uncompressed size of one block
+	 * @param level compression level, refer <tt>java.util.zip.Deflater</tt>
+	 * @param cachedBlocks number of decompressed blocks to keep in memory
+	 * @param readOnly whether the files are opened read-only, the store can not be appended to then
+	 */
+	CompressedBlockStore(RandomAccessFile dataFile, String dirName, int blockSize, int level, int cachedBlocks, boolean readOnly) throws IOException {
+
+		this.readOnly  = readOnly;
+		this.dirFile   = new RandomAccessFile(dirName, readOnly ? "r" : "rw");
+		this.channel   = dataFile.getChannel();
+		this.blockSize = blockSize;
+		this.deflater  = new Deflater(level);
+		this.inflater  = new Inflater();
+		this.blocks    = new LruCache<Long, byte[]>(Math.max(1, cachedBlocks));
+		this.pending   = new byte[blockSize];
+
+		// load the block directory of an existing store
+		long n = dirFile.length() / 8;
+		if (n > 0) {
+			byte[] dir = new byte[(int) (n * 8)];
+			dirFile.seek(0);
+			dirFile.readFully(dir);
+			ByteBuffer b = ByteBuffer.wrap(dir);
+			blockEnds = new long[(int) Math.max(16, n)];
+			for (int i = 0; i < n; i++) blockEnds[i] = b.getLong();
+			blockCount = n;                              // the last block may be partial, it is not filled up
+		}
+	}
+
+	/**
+	 * Appends <tt>len</tt> bytes of <tt>src</tt> starting at <tt>off</tt> to the end of the store.
+	 */
+	synchronized void append(byte[] src, int off, int len) throws IOException {
+		if (readOnly) throw new UnsupportedOperationException("Compressed store is opened read-only");
+		while (len > 0) {
+			// a full block is only compressed when more bytes come, it may be the last one
+			if (pendingLength == blockSize) flushPending();
+			int n = Math.min(len, blockSize - pendingLength);
+			System.arraycopy(src, off, pending, pendingLength, n);
+			pendingLength += n;
+			off           += n;
+			len           -= n;
+		}
+	}
+
+	/**
+	 * Copies <tt>len</tt> bytes of the logical stream starting at <tt>pos</tt> into <tt>dst</tt>.
+	 */
+	synchronized void read(long pos, byte[] dst, int off, int len) throws IOException {
+		while (len > 0) {
+			long k = pos / blockSize;
+			int  o = (int) (pos % blockSize);
+			int  n = Math.min(len, blockSize - o);
+			System.arraycopy(block(k), o, dst, off, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes in the logical stream, i.e. uncompressed.
+	 */
+	synchronized long size() {
+		return blockCount * blockSize + pendingLength;
+	}
+
+	/**
+	 * Returns the number of bytes the compressed blocks occupy on disk.
+	 */
+	synchronized long compressedSize() {
+		return blockStart(blockCount);
+	}
+
+	/**
+	 * Forces everything appended so far to the disk. The partially filled last block is
+	 * compressed and stored as the last block, exactly like <tt>close()</tt> does, but it
+	 * stays pending, i.e. it is overwritten by the next sync or once it is full.
+	 */
+	synchronized void sync() throws IOException {
+		if (readOnly) return;
+		if (pendingLength > 0 && pendingLength != syncedLength) {
+			writeBlock(pending, pendingLength);
+			syncedLength = pendingLength;
+		}
+		channel.force(false);
+		dirFile.getFD().sync();
+	}
+
+	/**
+	 * Compresses and stores the partially filled last block. The block stays in memory
+	 * and is taken back when the store is opened again. The store must not be used
+	 * after <tt>close()</tt>.
+	 */
+	synchronized void close() throws IOException {
+		if (pendingLength > 0 && !readOnly) {
+			writeBlock(pending, pendingLength);
+			blockCount++;
+		}
+		deflater.end();
+		inflater.end();
+		dirFile.close();
+	}
+
+	/*
+	 * HELPER Methods
+	 * ----------------------------------------------------------
+	 */
+
+	// compresses the full pending block, stores it and starts a new one
+	private void flushPending() throws IOException {
+		writeBlock(pending, blockSize);
+		blocks.put(blockCount, pending);             // it is likely to be read soon
+		blockCount++;
+		pending       = new byte[blockSize];
+		pendingLength = 0;
+		syncedLength  = 0;
+	}
+
+	private void writeBlock(byte[] block, int len) throws IOException {
+
+		deflater.reset();
+		deflater.setInput(block, 0, len);
+		deflater.finish();
+
+		// worst case deflate output is a little over the input size
+		int bound = len + (len >> 3) + 64;
+		if (compressed.length < bound) compressed = new byte[bound];
+		int n = 0;
+		while (!deflater.finished()) {
+			if (n == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length << 1);
+			n += deflater.deflate(compressed, n, compressed.length - n);
+		}
+
+		long start = blockStart(blockCount);
+		ByteBuffer b = ByteBuffer.wrap(compressed, 0, n);
+		while (b.hasRemaining()) channel.write(b, start + b.position());
+
+		if (blockCount == blockEnds.length) blockEnds = Arrays.copyOf(blockEnds, blockEnds.length << 1);
+		blockEnds[(int) blockCount] = start + n;
+		dirFile.seek(blockCount * 8);
+		dirFile.writeLong(start + n);
+	}
+
+	// returns the uncompressed content of block k
+	private byte[] block(long k) throws IOException {
+		if (k == blockCount) return pending;
+		byte[] b = blocks.get(k);
+		if (b == null) {
+			b = readBlock(k);
+			blocks.put(k, b);
+		}
+		return b;
+	}
+
+	private byte[] readBlock(long k) throws IOException {
+
+		long start = blockStart(k);
+		int  n     = (int) (blockEnds[(int) k] - start);
+		if (compressed.length < n) compressed = new byte[n];
+		ByteBuffer b = ByteBuffer.wrap(compressed, 0, n);
+		while (b.hasRemaining())
+			if (channel.read(b, start + b.position()) < 0) throw new IOException("Compressed block " + k + " is truncated");
+
+		byte[] block = new byte[blockSize];
+		inflater.reset();
+		inflater.setInput(compressed, 0, n);
+		try {
+			int inflated = 0;
+			while (!inflater.finished() && inflated < blockSize) {
+				int m = inflater.inflate(block, inflated, blockSize - inflated);
+				if (m == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Compressed block " + k + " is corrupt");
+				inflated += m;
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Compressed block " + k + " is corrupt", e);
+		}
+		return block;
+	}
+
+	private long blockStart(long k) {
+		return k == 0 ? 0 : blockEnds[(int) k - 1];
+	}
+}
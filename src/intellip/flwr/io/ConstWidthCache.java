@@ -1,25 +1,31 @@
 package intellip.flwr.io;
 
 import intellip.flwr.util.Log;
+import intellip.flwr.util.Trace;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
-import java.util.List;
-
-import sun.misc.Cleaner;
-import sun.nio.ch.DirectBuffer;
+import java.util.Arrays;
 
 public class ConstWidthCache extends Cache implements Closeable {
 
-	private final List<MappedByteBuffer> mappings;
+	private final MapTable mappings;                 // blocks of the cache file, memory maps unless built with a BlockStorage
 	private int fixedBufferSize = 0;
 	private long bytePosition = 0;
 	private int currentMapNumber = 0;
 	private int currentMapRemainingBytes = 0;
 	
+	// concurrent read mode - every reader thread reads through its own duplicates of the maps
+	private boolean isConcurrent = false;
+	private final ThreadLocal<ByteBuffer[]> views = new ThreadLocal<ByteBuffer[]>();
+
+	// metrics registered over JMX, null while they are not enabled
+	private volatile CacheMetrics metrics;
+	
 	/*
 	 * CONSTRUCTOR
 	 * ----------------------------------------------------------
@@ -27,39 +33,47 @@ public class ConstWidthCache extends Cache implements Closeable {
 	public ConstWidthCache(String path) throws Exception {
 		super(path);
 		// TODO Auto-generated constructor stub
-		mappings = new ArrayList<MappedByteBuffer>();
+		mappings = _blocks(BlockStorage.MMAP);
 	}
 
 	public ConstWidthCache(String path, long block_size) throws Exception {
 		super(path, block_size);
 		// TODO Auto-generated constructor stub
-		mappings = new ArrayList<MappedByteBuffer>();
+		mappings = _blocks(BlockStorage.MMAP);
 	}
 
 	public ConstWidthCache(String path, long block_size, String name)
 			throws Exception {
 		super(path, block_size, name);
 		// TODO Auto-generated constructor stub
-		mappings = new ArrayList<MappedByteBuffer>();
+		mappings = _blocks(BlockStorage.MMAP);
 	}
 
 	public ConstWidthCache(String path, long block_size, String name,
 			String type) throws Exception {
 		super(path, block_size, name, type);
 		// TODO Auto-generated constructor stub
-		mappings = new ArrayList<MappedByteBuffer>();
+		mappings = _blocks(BlockStorage.MMAP);
+	}
+
+	// blocks held as the storage says, refer BlockStorage
+	public ConstWidthCache(String path, long block_size, BlockStorage storage) throws Exception {
+		super(path, block_size);
+		mappings = _blocks(storage);
 	}
 
 	@Override
 	public void close() throws IOException {
-        for (MappedByteBuffer mapping : mappings)
-            clean(mapping);
+		mappings.release();          // writes back blocks which are not memory maps
         dataCacheFile.close();
+		setMetricsEnabled(false);
 	}
 
 	@Override
 	public long set(byte[] bytes) throws IOException {
 		
+		CacheMetrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
 		int len = bytes.length;
 		
 		// set fixedBufferSize and ensure fixedBufferSize does not vary
@@ -75,45 +89,43 @@ public class ConstWidthCache extends Cache implements Closeable {
 		// ---------------------------------------------------------------------
 		int bytesSoFarStoredInMap = 0;
 		int gap = len - currentMapRemainingBytes;
-		Log.write("");
-		Log.write("-- New Set Call -- ");
-		Log.write("Gap value        : " + gap + ", block size : " + blockSize);
+		if (Trace.ENABLED) Trace.event("[SET] Gap {}, block size {}", gap, blockSize);
 		if (gap > 0)
 		{
 			if (currentMapRemainingBytes > 0 && currentMapNumber > 0) {
-				Log.write("Feeling existing map");
-				mappings.get(currentMapNumber - 1).put(bytes, 0, currentMapRemainingBytes);
+				block(currentMapNumber - 1).position((int) (blockSize - currentMapRemainingBytes));
+				block(currentMapNumber - 1).put(bytes, 0, currentMapRemainingBytes);
 				bytePosition += currentMapRemainingBytes;
 				bytesSoFarStoredInMap = currentMapRemainingBytes;
-				Log.write("Bytes stored     : " + currentMapRemainingBytes);
-				Log.write("Map free space   : " + mappings.get(currentMapNumber - 1).remaining());
+				if (Trace.ENABLED) Trace.event("Filled map {} with {} bytes", currentMapNumber - 1, bytesSoFarStoredInMap);
 			}
 			int NoOfNewMapsRequired = (int) Math.ceil((double)gap / (double)blockSize);
-			Log.write("Maps needed      : " + NoOfNewMapsRequired);
+			if (Trace.ENABLED) Trace.event("Maps needed {}", NoOfNewMapsRequired);
 			for (int i = 0; i < NoOfNewMapsRequired; i++) {
-				MappedByteBuffer m = dataCacheFile.getChannel().map(FileChannel.MapMode.READ_WRITE, bytePosition, blockSize);
-				Log.write("New map from byte: " + bytePosition + " to " + blockSize);
+				ByteBuffer m = mappings.add();
+				if (metrics != null) metrics.recordMap(blockSize);
 				int bytesToStore = (int) Math.min(blockSize, len - bytesSoFarStoredInMap);
-				Log.write("Bytes stored     : " + bytesToStore);
 				m.put(bytes, bytesSoFarStoredInMap, bytesToStore);
-				mappings.add(m);
 				currentMapNumber += 1;
 				bytePosition += bytesToStore;
 				bytesSoFarStoredInMap += bytesToStore;
 				currentMapRemainingBytes = (int) (blockSize - bytesToStore);
-				Log.write("Map free space   : " + m.remaining() + " (of " + m.capacity() + " bytes)");
+				if (Trace.ENABLED) Trace.event("New map {} from byte {}, bytes stored {}", currentMapNumber - 1, bytePosition - bytesToStore, bytesToStore);
 			}
 		}
 		else { // gap <= 0
-			Log.write("Placing all data in current map");
-			mappings.get(currentMapNumber - 1).put(bytes);
+			block(currentMapNumber - 1).position((int) (blockSize - currentMapRemainingBytes));
+			block(currentMapNumber - 1).put(bytes);
 			bytePosition += len;
 			currentMapRemainingBytes -= len;
-			Log.write("Map free space   : " + mappings.get(currentMapNumber - 1).remaining());
+			if (Trace.ENABLED) Trace.event("Placed in map {}, free space {}", currentMapNumber - 1, currentMapRemainingBytes);
 		}
 		// ------------------------- END OF MEMORY ALLOCATION LOGIC --------------------
 		
 		
+		if (metrics != null)
+			metrics.recordPut(System.nanoTime() - start, len, (startBytePosition + len - 1) / blockSize - startBytePosition / blockSize);
+
 		// return start byte position
 		return startBytePosition;
 	}
@@ -125,23 +137,25 @@ public class ConstWidthCache extends Cache implements Closeable {
 		 * when fixedBufferSize is less than or equal to the value of integer data type (32k)
 		 */
 		
+		long start         = metrics != null ? System.nanoTime() : 0;
 		byte[] dst         = new byte[fixedBufferSize];
 		// determine the map number and offset to start reading
 		int inWhichMap     = (int) (pos / blockSize);
 		int atWhatOffset   = (int) (pos % blockSize);
 		
 		// set the pointer at appropriate place for data reading
-		mappings.get(inWhichMap).position(atWhatOffset);
+		ByteBuffer m = map(inWhichMap);
+		m.position(atWhatOffset);
 		
 		// does the entire data for reading remain in the same map?
 		if ( blockSize - atWhatOffset >= fixedBufferSize ) { // yes
-			mappings.get(inWhichMap).get(dst);
-			return dst;
+			m.get(dst);
+			return _recordGet(start, dst, 0);
 		}
 		else { // data is spread across multiple maps - very unlikely though! 
 			
 			// read the available data from current map
-			mappings.get(inWhichMap).get(dst, 0, (int) (blockSize - atWhatOffset));
+			m.get(dst, 0, (int) (blockSize - atWhatOffset));
 			
 			// how many more bytes to read?
 			int bytesToRead = (int) (fixedBufferSize - (blockSize - atWhatOffset));
@@ -152,13 +166,14 @@ public class ConstWidthCache extends Cache implements Closeable {
 			// read them all
 			int offset =  (int) (blockSize - atWhatOffset);
 			for ( int i = 1; i <= NoOfExtraMapsToRead; i++ ) {
-				mappings.get(inWhichMap + i).position(0);
+				m = map(inWhichMap + i);
+				m.position(0);
 				int len = (int) Math.min(blockSize, bytesToRead);
-				mappings.get(inWhichMap + i).get(dst, offset, len);
+				m.get(dst, offset, len);
 				offset += len;
 				bytesToRead -= len; 
 			}
-			return dst;
+			return _recordGet(start, dst, NoOfExtraMapsToRead);
 		}
 	}
 	
@@ -171,18 +186,78 @@ public class ConstWidthCache extends Cache implements Closeable {
 		return fixedBufferSize;
 	}
 	
+	/**
+	 * Turns the concurrent read mode on or off. In concurrent read mode any number of
+	 * threads can call <tt>get()</tt> at the same time without locking, since every
+	 * thread reads through its own duplicates of the memory maps. <tt>set()</tt> must
+	 * not be called while the cache is being read concurrently.
+	 */
+	public void setConcurrentReaders(boolean concurrent) {
+		isConcurrent = concurrent;
+	}
+
+	/**
+	 * Turns the metrics of the cache on or off. While they are on they are registered over
+	 * JMX under the name of the cache file, refer <tt>CacheMetrics</tt>.
+	 */
+	public synchronized void setMetricsEnabled(boolean enabled) {
+		if (enabled && metrics == null)
+			metrics = CacheMetrics.register("ConstWidthCache", getCacheFileName(), null);
+		else if (!enabled && metrics != null) {
+			metrics.close();
+			metrics = null;
+		}
+	}
+
+	/**
+	 * Returns the metrics of the cache, <tt>null</tt> if they are off.
+	 */
+	public CacheMetrics getMetrics() {
+		return metrics;
+	}
+	
 	/*
 	 * HELPER Methods
 	 * ----------------------------------------------------------
 	 */
-    private void clean(MappedByteBuffer mapping) {
-        if (mapping == null) return;
-        Cleaner cleaner = ((DirectBuffer) mapping).cleaner();
-        if (cleaner != null) cleaner.clean();
-    }
+	// returns the map to read from, the calling thread's own duplicate in concurrent read mode
+	private ByteBuffer map(int mapNo) {
+		
+		if (!isConcurrent) return block(mapNo);
+		
+		ByteBuffer[] v = views.get();
+		if (v == null || mapNo >= v.length) {
+			v = v == null ? new ByteBuffer[mappings.size()] : Arrays.copyOf(v, mappings.size());
+			views.set(v);
+		}
+		if (v[mapNo] == null) v[mapNo] = block(mapNo).duplicate();
+		return v[mapNo];
+	}
+
+	// records a get() started at "start" in the metrics, if they are on, and returns its bytes
+	private byte[] _recordGet(long start, byte[] dst, int crossed) {
+		CacheMetrics metrics = this.metrics;
+		if (metrics != null && start != 0)           // 0 if they were turned on during the get()
+			metrics.recordGet(System.nanoTime() - start, dst.length, crossed);
+		return dst;
+	}
+
+	// block i of the cache file, blocks are only added by set() and never dropped
+	private ByteBuffer block(int i) {
+		try {
+			return mappings.get(i);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private MapTable _blocks(BlockStorage storage) {
+		return new MapTable(dataCacheFile.getChannel(), FileChannel.MapMode.READ_WRITE, 0, blockSize, 0, storage);
+	}
 
 	/**
-	 * @param args
+	 * @param args [directory of the cache], default is java.io.tmpdir
 	 */
 	public static void main(String[] args) {
 		ConstWidthCache cc;
@@ -190,7 +265,8 @@ public class ConstWidthCache extends Cache implements Closeable {
 		try {
 			
 			// initialize the class
-			cc = new ConstWidthCache("/Users/akash/", 1 << 4);
+			String dir = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+			cc = new ConstWidthCache(dir.endsWith(File.separator) ? dir : dir + File.separator, 1 << 4);
 			
 			// message
 			Log.write("Class initialized");
@@ -0,0 +1,47 @@
+package intellip.flwr.io;
+
+import java.lang.reflect.Field;
+
+import sun.misc.Unsafe;
+
+/**
+ * <p>Memory fences for data shared through memory maps.</p>
+ *
+ * <p>Reads and writes of a <tt>MappedByteBuffer</tt> are plain memory accesses which the
+ * compiler and the processor are free to reorder. Where a group of such accesses must be
+ * ordered against a volatile sequence number - e.g. reading both the longs of an index entry
+ * between two reads of a seqlock - a fence is needed in addition to the volatile access.
+ * The fences of <tt>sun.misc.Unsafe</tt> are used since there is no public API for them in
+ * Java 8.</p>
+ */
+final class Fences {
+
+	private static final Unsafe UNSAFE;
+
+	static {
+		try {
+			Field f = Unsafe.class.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			UNSAFE = (Unsafe) f.get(null);
+		}
+		catch (Exception e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private Fences() { }
+
+	/**
+	 * Loads before the fence are not reordered with loads and stores after it.
+	 */
+	static void loadFence() {
+		UNSAFE.loadFence();
+	}
+
+	/**
+	 * Stores before the fence are not reordered with stores after it.
+	 */
+	static void storeFence() {
+		UNSAFE.storeFence();
+	}
+}
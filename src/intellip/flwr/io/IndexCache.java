@@ -1,21 +1,39 @@
 package intellip.flwr.io;
 
 import intellip.flwr.util.Base;
-import intellip.flwr.util.Log;
+import intellip.flwr.util.Trace;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.DoubleSupplier;
+import java.util.zip.Deflater;
 
 import sun.misc.Cleaner;
 import sun.nio.ch.DirectBuffer;
@@ -48,6 +66,24 @@ import sun.nio.ch.DirectBuffer;
  * a writer object which can both read and write from the cache randomly. However by calling
  * the <tt>useExistingFile(String CacheName)</tt> method during invocation, the class
  * can be invoked as a reader from an existing cache.</p>
+ *
+ * <p>An <tt>IndexCache</tt> is not thread-safe by default. When built with
+ * <tt>withConcurrentReaders()</tt>, any number of threads can call <tt>get()</tt> and
+ * <tt>getView()</tt> at the same time without any external locking, while other threads
+ * keep writing to the cache through <tt>put()</tt> and <tt>putAll()</tt>. Writers take turns
+ * through a write lock, refer <tt>ShardedIndexCache</tt> for writers that should not.
+ * Readers never block the writer. A handler becomes readable once the <tt>put()</tt>
+ * that returned it completes, i.e. readers only ever see fully written items.</p>
+ *
+ * <p>By default nothing is forced to the disk, the operating system writes the maps back
+ * whenever it likes. A cache built with <tt>withDurability()</tt> commits the items in the
+ * background instead, and a writer can wait for an item to be committed through
+ * <tt>awaitCommit()</tt>, refer DURABILITY.</p>
+ *
+ * <p>A stored item can be replaced through <tt>update()</tt> and removed through
+ * <tt>delete()</tt>, its handler stays the same. The bytes they leave behind are reclaimed by
+ * <tt>compact()</tt>, which can also run in background once the cache is fragmented enough,
+ * refer COMPACTION.</p>
  */
 
 public class IndexCache implements Closeable {
@@ -56,6 +92,10 @@ public class IndexCache implements Closeable {
 	// data and index cache files location, name related variables
 	private final String     CacheName;                      // unique name for each cache
 	private final boolean    isCompress;                     // is the cache file compressed
+	private final boolean    isConcurrent;                   // can get() be called from many threads at once
+	private final boolean    isCompactIndex;                 // is the index stored in compact format (FLAG_COMPACT)
+	private final boolean    isDedup;                        // are identical items stored once (FLAG_DEDUP)
+	private final boolean    isReadOnly;                     // are the files opened and mapped read-only, refer READ ONLY
 	private final String     IndexCachePath;                 // directory location of index cache files
 	private final String     DataCachePath;                  // directory location of data cache files
 	private final String     IndexCacheName;                 // full-name of index cache
@@ -66,16 +106,68 @@ public class IndexCache implements Closeable {
 	// Data Cache Related variables
 	private       long       lBytePosition;                  // amount of bytes stored so far
 	private final long       lBlockSize;                     // size of each memory mapped buffer block
-	private RandomAccessFile DataCacheFile;                  // handler for data cache file
-	private final List<MappedByteBuffer> data_maps;          // list of maps in the data cache file
+	private RandomAccessFile DataCacheFile;                  // handler for data cache file of the active generation
+	private MapTable         data_maps;                      // list of maps in the data cache file of the active generation
+	private final MapTable[] generations = new MapTable[2];  // data maps of each generation, refer COMPACTION
+	private int              activeGen;                      // generation put() writes to
+	private RandomAccessFile OldDataCacheFile;               // data cache file of the generation being compacted, if any
+	private final long[]     deadBytes = new long[2];        // bytes of replaced and deleted items in each generation
+	private final int        maxMappedBlocks;
+	private final BlockStorage storage;                      // how the blocks of the files are held, refer STORAGE
+	private final CacheMetrics metrics;                      // registered over JMX if built withMetrics(), null otherwise
+	private final CompressedBlockStore store;                // compressed data cache, used instead of data_maps if isCompress
 
 
 	// index cache related variables
 	private RandomAccessFile IndexCacheFile;                 // handler for index cache file
-	private final List<MappedByteBuffer> index_maps;         // list of maps in the index cache file
+	private final MappedByteBuffer header_map;               // map of the header of index cache file
+	private final MapTable   index_maps;                     // list of maps in the index cache file
+	private final IndexEntryCache[] lru;                     // LRU cache of recently read index entries, in stripes
+	private final long[]     address = new long[2];          // { itemPos, itemSize } of the last entry read
+	private final long[]     writerEntry = new long[2];      // { itemPos, itemSize } of the last entry read by the writer
+
+	// compact index related variables
+	private RandomAccessFile CompactIndexFile;               // handler for compact index payload file
+	private final MapTable   compact_maps;                   // list of maps in the compact index payload file, if isCompactIndex
+	private long             compactWritten;                 // bytes written in the compact index payload so far
+	private long             compactExpected;                // position of the next item if it follows the last one
+	private int              CompactMapCount;                // no of maps added so far in compact index payload
+
+	private final ThreadLocal<ReaderViews> readerViews;      // per-thread state of concurrent readers
+	private final Flusher    flusher;                        // commits the cache in background, null if Durability.NONE
+	private final Compactor  compactor;                      // compacts the cache in background, if enabled
+	private final Object     writeLock = new Object();       // held while the cache is written to
+	private final Object     compactLock = new Object();     // held while the cache is compacted
+	private final AtomicIntegerArray entrySeq;               // seqlocks of the index entries, refer COMPACTION
+	private long             dirtyFrom = Long.MAX_VALUE;     // lowest slot rewritten since the last commit
+	private final AtomicInteger streamingReaders = new AtomicInteger(); // get(handler, channel) calls running
+
+	// asynchronous access related variables
+	private final Executor   asyncExecutor;                  // runs getAsync() and putAsync(), refer ASYNCHRONOUS ACCESS
+	private final AsynchronousFileChannel[] asyncFiles = new AsynchronousFileChannel[2]; // data cache file of each generation, for cold reads
+	private final Object     asyncLock = new Object();       // guards asyncFiles and the retirement of a generation
+
+	// deduplication related variables
+	private final KeyIndex   dedup;                          // first handler of each digest, refer DEDUPLICATION, if isDedup
+	private final byte[]     digest = new byte[DIGEST_SIZE]; // digest of the item being put
+	private long             dedupCount;                     // items put since opening that were stored already
+
+	/*
+	 * In concurrent read mode every reader thread reads the data maps through its
+	 * own duplicates of them. A duplicate shares the content of the map but has
+	 * its own position, so the readers do not need to lock each other out.
+	 * Duplicates are created lazily, once per thread and map.
+	 */
+	private static final int LRU_STRIPES = 16;               // stripes of the LRU cache in concurrent read mode
+	private static final class ReaderViews {
+		private ByteBuffer[][] data  = new ByteBuffer[2][0]; // duplicates of the data maps of each generation
+		private ByteBuffer[][] source= new ByteBuffer[2][0]; // the maps duplicated, to notice when one is remapped
+		private final long[] address = new long[2];          // { itemPos, itemSize } of the last entry read
+	}
 
 	// below data structures represents one element in the index list.
-	private static final int INDEX_ENTRY_SIZE = 16;          // size of each entry in ItemAddress in bytes
+	private static final int INDEX_ENTRY_SIZE = 16;          // size of each entry in index in bytes
+	private static final int PUT_ALL_BATCH    = 1 << 12;     // records consumed at a time by putAll(Iterator)
 	private             long lIndexPerBlock;
 	
 	/* ------------------------ ALL-DAY-BREAKFAST OPTIMIZATION ------------------------
@@ -100,89 +192,101 @@ public class IndexCache implements Closeable {
 	 *
 	 *---------------------------------------------------------------------------------
 	 */
-	private class ItemAddress {                              // consumes 32 bytes, refer [ALGO4, pp. 201]
-
-		private long itemPos;                          // at which position the item resides (first byte)
-		private long itemSize;                         // how many bytes is the address made of (int changed to long)
-
-		public ItemAddress (byte[] dst) {
-			this.itemPos  = Base.bytesToLong(dst, 0, 8);
-			this.itemSize = Base.bytesToLong(dst, 8, 8);
-		}
-
-		public ItemAddress (long pos, long size) {
-			this.itemPos  = pos;
-			this.itemSize = size;
-		}
-
-		public long getPosition() {
-			return itemPos;
-		}
-
-		public int getSize() {
-			return (int) itemSize;
-		}
-		
-
-		public byte[] serialise() {
-
-			// long is 8 byte so this means we need 
-			// 16 bytes of space theoretically
-			// to serialize the data in this structure.
-			
-			byte[] b = new byte[INDEX_ENTRY_SIZE];
-
-			// convert long to byte
-			b[0]  = (byte)(itemPos >>> 56);
-		    b[1]  = (byte)(itemPos >>> 48);
-		    b[2]  = (byte)(itemPos >>> 40);
-		    b[3]  = (byte)(itemPos >>> 32);
-		    b[4]  = (byte)(itemPos >>> 24);
-		    b[5]  = (byte)(itemPos >>> 16);
-		    b[6]  = (byte)(itemPos >>>  8);
-		    b[7]  = (byte)(itemPos >>>  0);
-
-		    // convert long to byte
-			b[8]  = (byte)(itemSize >>> 56);
-		    b[9]  = (byte)(itemSize >>> 48);
-		    b[10] = (byte)(itemSize >>> 40);
-		    b[11] = (byte)(itemSize >>> 32);
-		    b[12] = (byte)(itemSize >>> 24);
-		    b[13] = (byte)(itemSize >>> 16);
-		    b[14] = (byte)(itemSize >>>  8);
-		    b[15] = (byte)(itemSize >>>  0);
-
-			return b;
-		}
-	}
+	/*
+	 * One index entry is made of two longs, written back to back in the index maps:
+	 *
+	 *     [ itemPos  : 8 byte ]  at which position the item resides (first byte)
+	 *     [ itemSize : 8 byte ]  how many bytes is the item made of (int changed to long)
+	 *
+	 * Entries are read and written with absolute getLong()/putLong() calls, so no
+	 * object is created for an entry. When an entry is needed as a value, it is
+	 * copied into a long[2] array as { itemPos, itemSize }, refer _getItemAddress().
+	 *
+	 * COMPACT INDEX
+	 *
+	 * Items are appended one after the other, so the position of an item is mostly
+	 * the end of the previous one and most sizes fit in a byte or two. A compact index
+	 * stores the entries in frames of COMPACT_FRAME_SIZE entries. For every frame, one
+	 * 16 byte entry is written in the index maps as usual:
+	 *
+	 *     [ anchor   : 8 byte ]  itemPos of the first entry of the frame
+	 *     [ offset   : 8 byte ]  where the frame starts in the compact index payload
+	 *
+	 * and the entries of the frame are written to the payload file as two varints:
+	 *
+	 *     [ gap      : zigzag varint ]  itemPos minus the end of the previous item in the frame
+	 *     [ itemSize : varint        ]
+	 *
+	 * Varints keep 7 bits per byte, the high bit telling whether more bytes follow. The
+	 * gap is usually 0, hence an entry takes 2 to 4 bytes instead of 16. Looking up an
+	 * entry decodes at most COMPACT_FRAME_SIZE entries of one frame, i.e. it is still O(1).
+	 */
+	private static final int COMPACT_FRAME_SIZE = 64;        // entries in one frame of a compact index
 
-	// below data structure represents the construct of cache header
-	private static final int FIXED_HEADER_SIZE = 24; 
+	/*
+	 * below data structure represents the construct of cache header. Besides the
+	 * fixed properties of the cache, the header holds a checkpoint of the writer:
+	 * how many entries and bytes are completely written so far. The checkpoint is
+	 * updated in place through a small map of the header every time the writer
+	 * publishes (refer _publish()), so an existing cache is reopened by reading the
+	 * header only - without scanning the files or trusting their sizes, which are
+	 * always rounded up to whole blocks.
+	 */
+	private static final int  FIXED_HEADER_SIZE = 72;
+	private static final long LAYOUT_VERSION    = 0x464C5752494458L << 8 | 2;   // "FLWRIDX", version 2
+	private static final long FLAG_COMPACT      = 1;                            // index is in compact format
+	private static final long FLAG_GENERATION   = 2;                            // generation 1 is the active one
+	private static final long FLAG_DEDUP        = 4;                            // identical items are stored once
+	private static final int  HEADER_FLAGS      = 32;                           // offset of flags in header
+	private static final int  HEADER_ENTRIES    = 40;                           // offset of entry count in header
+	private static final int  HEADER_DATA       = 48;                           // offset of data bytes written in header
+	private static final int  HEADER_COMPACT    = 56;                           // offset of compact payload bytes in header
+	private static final int  HEADER_DEAD       = 64;                           // offset of dead bytes of active generation in header
 	private class Header {
 
 		private long   BlockSize;     // 8 byte
 		private long   fileName;      // 8 byte
 		private long   createDate;    // 8 byte
+		private long   layout;        // 8 byte - magic number and layout version
+		private long   flags;         // 8 byte - FLAG_xxx
+		private long   entries;       // 8 byte - checkpoint of NoOfEntryInIndex
+		private long   dataWritten;   // 8 byte - checkpoint of dataWrittenSoFar
+		private long   compactWritten;// 8 byte - checkpoint of compactWritten
+		private long   dead;          // 8 byte - checkpoint of deadBytes of the active generation
 
 		public Header (byte[] b) {
-			this.BlockSize  = Base.bytesToLong (b, 0,  8);
-			this.fileName   = Base.bytesToLong (b, 8,  8);
-			this.createDate = Base.bytesToLong (b, 16, 8);
+			this.BlockSize      = Base.bytesToLong (b, 0,  8);
+			this.fileName       = Base.bytesToLong (b, 8,  8);
+			this.createDate     = Base.bytesToLong (b, 16, 8);
+			this.layout         = Base.bytesToLong (b, 24, 8);
+			this.flags          = Base.bytesToLong (b, HEADER_FLAGS,   8);
+			this.entries        = Base.bytesToLong (b, HEADER_ENTRIES, 8);
+			this.dataWritten    = Base.bytesToLong (b, HEADER_DATA,    8);
+			this.compactWritten = Base.bytesToLong (b, HEADER_COMPACT, 8);
+			this.dead           = Base.bytesToLong (b, HEADER_DEAD,    8);
 		}
 
-		public Header (long cacheName, long blockSize) {
+		public Header (long cacheName, long blockSize, long flags) {
 			this.BlockSize  = blockSize;
 			this.fileName   = cacheName;
 			this.createDate = Base.getLongDate();
+			this.layout     = LAYOUT_VERSION;
+			this.flags      = flags;
 		}
 
 		public long getBlockSize () { return this.BlockSize; }
 		public long getName ()      { return this.fileName;  }
 		public long getCreateDate() { return this.createDate;}
+		public long getLayout ()    { return this.layout;    }
+		public long getFlags ()     { return this.flags;     }
+		public long getEntries ()   { return this.entries;   }
+		public long getDataWritten(){ return this.dataWritten;}
+		public long getCompactWritten() { return this.compactWritten; }
+		public long getDead ()      { return this.dead;      }
 
 		public byte[] serialise() {
 			// long is 8 byte
-			// this means we need 24 bytes of space
+			// this means we need 72 bytes of space
 			byte[] b = new byte[FIXED_HEADER_SIZE];
 
 			// convert long to byte
@@ -213,15 +317,153 @@ public class IndexCache implements Closeable {
 		    b[22] = (byte)(createDate >>>  8);
 		    b[23] = (byte)(createDate >>>  0);
 
-			return b;} // TODO
+		    System.arraycopy(Base.longToBytes(layout),         0, b, 24,             8);
+		    System.arraycopy(Base.longToBytes(flags),          0, b, HEADER_FLAGS,   8);
+		    System.arraycopy(Base.longToBytes(entries),        0, b, HEADER_ENTRIES, 8);
+		    System.arraycopy(Base.longToBytes(dataWritten),    0, b, HEADER_DATA,    8);
+		    System.arraycopy(Base.longToBytes(compactWritten), 0, b, HEADER_COMPACT, 8);
+		    System.arraycopy(Base.longToBytes(dead),           0, b, HEADER_DEAD,    8);
+
+			return b;
+		}
 	}
 
 	// cache, data and memory map handler related variables
 	private long     NoOfEntryInIndex;                       // number of items already loaded in data and index
-	private long     CurrentMapRemainingByte;                // space remaining in the lastly added map in bytes
+	private long     CurrentMapRemainingByte;                // mapped space remaining after dataWrittenSoFar in bytes
 	private long     dataWrittenSoFar;                       // total amount of data written in data cache so far in bytes
 	private int      DataMapCount;                           // serial number of last map added in data. (no of maps added so far in data cache)
 	private int      IndexMapCount;                          // serial number of last map added in index. (no of maps added so far in index cache)
+
+	// write watermark - what the writer has completely written so far and readers may see
+	private volatile long publishedEntries;                  // NoOfEntryInIndex as of the last completed put
+	private volatile long publishedData;                     // bytes in the data cache files as of the last completed put
+	private volatile long publishedDead;                     // deadBytes of all generations as of the last completed put
+	private          long oldGenBytes;                       // bytes in the data cache file of the generation being compacted
+
+	/*
+	 * DURABILITY
+	 *
+	 * Pages written through the maps reach the disk whenever the operating system writes
+	 * them back, in no particular order. After a crash the index or the header may thus
+	 * point to data which never made it to the disk. Forcing the maps after every put()
+	 * is safe but slow, hence the cache can be committed in the background instead:
+	 *
+	 *   NONE          nothing is forced (default), the header checkpoint is updated by put(),
+	 *                 or by close() if the data is compressed or not memory mapped
+	 *   PERIODIC      a flusher thread commits everything put so far at a fixed interval
+	 *   GROUP_COMMIT  as PERIODIC, but the flusher also commits as soon as a writer waits for
+	 *                 a handler in awaitCommit(). Items put while a commit is running are all
+	 *                 committed together by the next one.
+	 *
+	 * A commit takes a snapshot of the watermark under the write lock, forces the data maps (or the
+	 * compressed store), then the compact index payload and the index maps, and only then
+	 * writes the snapshot as the header checkpoint and forces the header. In the durable
+	 * modes put() never touches the header, so after a crash the cache reopens at the last
+	 * commit and every handler up to it is backed by data on the disk.
+	 *
+	 * A compressed cache keeps the block being filled in memory (refer CompressedBlockStore),
+	 * hence without durability its checkpoint only moves at close(), after the block is
+	 * stored. Reopening a compressed cache whose entries point past the stored data fails
+	 * rather than handing out positions which old handlers still point to.
+	 */
+	public enum Durability { NONE, PERIODIC, GROUP_COMMIT }
+
+	/*
+	 * COMPACTION
+	 *
+	 * update() appends the new bytes of an item to the data cache and points the index
+	 * entry of the handler to them, delete() marks the entry with the size DELETED. Either
+	 * way the old bytes stay in the data cache file as dead bytes, getFragmentation() tells
+	 * which share of the data cache they make up.
+	 *
+	 * The data cache is kept in generations. Generation 0 lives in the ".cac" file and
+	 * generation 1 in the ".cac.1" file, the top bits of itemPos tell which one an entry
+	 * points to (GEN_SHIFT). compact() starts a new generation, i.e. put() writes to the
+	 * other file from then on, and moves the live items of the old generation over to the
+	 * new one in small batches under the write lock. Once all of them are moved, the old
+	 * file is deleted. Its maps are not unmapped, a reader that picked an old entry just
+	 * before it was moved may still be reading them.
+	 *
+	 * Moving an item rewrites an index entry which readers may be reading at the same
+	 * time. Both the longs of an entry are hence rewritten under a seqlock [JCIP, pp. 324]:
+	 * the writer makes the sequence number of the entry odd, writes the entry and makes it
+	 * even again, while a reader retries until it reads the same even number before and
+	 * after reading the entry. There is one sequence number per ENTRY_SEQ_STRIPES entries.
+	 * Entries which are only appended need no seqlock, they are published by _publish().
+	 *
+	 * A compact index (refer COMPACT INDEX) can not be rewritten in place, and a compressed
+	 * data cache can not be split in generations, hence neither supports any of it: their
+	 * dead bytes could never be reclaimed.
+	 */
+	private static final int  GEN_SHIFT         = 62;                       // itemPos bit telling the generation
+	private static final long POS_MASK          = (1L << GEN_SHIFT) - 1;    // itemPos bits telling the position
+	private static final long DELETED           = -1;                       // itemSize of a deleted item
+	private static final int  ENTRY_SEQ_STRIPES = 1 << 10;                  // seqlocks of the index entries
+	private static final int  COMPACT_BATCH     = 1 << 8;                   // items moved at a time by compact()
+
+	/*
+	 * DEDUPLICATION
+	 *
+	 * In deduplicating mode put() computes a 128 bit digest of every item and looks it up in
+	 * a KeyIndex of digests kept beside the index cache file (".dedup.key", ".dedup.hix.n").
+	 * If an item with the same digest is stored already and its bytes are equal to the new
+	 * ones, the index entry of the new handler points to the bytes of that item and nothing
+	 * is written to the data cache. Otherwise the item is written as usual and its handler
+	 * is stored against the digest.
+	 *
+	 * The digest only finds the candidate, the bytes are always compared, hence a collision
+	 * costs a missed deduplication but never a wrong item. For the same reason the digest
+	 * index does not need to be committed along with the cache: an entry pointing past the
+	 * handlers that survived a crash is simply ignored. Since the bytes of an item may be
+	 * shared by many handlers, a deduplicating cache supports neither update(), delete() nor
+	 * compact(). Items put through a channel or a stream are not deduplicated.
+	 */
+	private static final int  DIGEST_SIZE       = 16;
+
+	/*
+	 * READ ONLY
+	 *
+	 * A cache opened with Builder.readOnly() opens its files "r" and maps them with
+	 * MapMode.READ_ONLY. The files are never extended, truncated or written, not even the
+	 * header checkpoint or the last block of a compressed cache at close(), and every method
+	 * that would write throws UnsupportedOperationException. Read-only maps of a file share
+	 * the pages of the page cache, hence any number of reader processes on a host can open
+	 * the same cache without holding a copy of it each and without any risk of writing to
+	 * it by accident. The cache is seen as it was checkpointed when it was opened.
+	 */
+
+	/*
+	 * STORAGE
+	 *
+	 * The blocks of the data, index and compact index files are memory maps by default.
+	 * Builder.withStorage() holds them in direct buffers read and written through positional
+	 * FileChannel calls instead, refer BlockStorage; the header is always mapped. Since such
+	 * blocks are written back only when the cache is committed or closed, the header
+	 * checkpoint is written then too and not on every put(): a cache without durability is
+	 * consistent on the disk, and seen by followers in other processes, after close() only.
+	 * compact() is the exception: it commits the blocks and the checkpoint of the new
+	 * generation before it deletes the file of the old one, which the last checkpoint
+	 * still points to. Streams are read and written through the blocks rather than transferred between
+	 * files, since the file may not have the latest bytes yet. Writable blocks are never
+	 * dropped, i.e. withMaxMappedBlocks() only applies to read-only caches then.
+	 */
+
+	/*
+	 * ASYNCHRONOUS ACCESS
+	 *
+	 * getAsync() and putAsync() return at once and complete a CompletableFuture from the
+	 * executor given to Builder.withAsyncExecutor(), by default a shared one running every
+	 * task on a virtual thread where the JVM has them (refer IoExecutor). A thread that must
+	 * not block, e.g. of an event loop, is hence never held up by a page fault on a cold block
+	 * or by the write lock. An item whose first data block is in the table of blocks is
+	 * copied on the executor right away. A cold item, i.e. one whose block was never touched
+	 * or was dropped (withMaxMappedBlocks()), is read through a positional
+	 * AsynchronousFileChannel read instead, so the executor does not wait for the disk and a
+	 * burst of cold reads does not map the blocks it touches once. Such a block is always
+	 * on the disk, blocks written to are never dropped before they are (refer STORAGE). If
+	 * compact() retires the generation of the item during the read, the read starts over.
+	 */
 	
 	/* ************************************************************************
 	 * Constructor uses builder pattern, Refer [EFFJ2, pp. 20]
@@ -238,7 +480,21 @@ public class IndexCache implements Closeable {
 		private boolean isReader     = false;
 		private int     LruCacheSize = 1 << 27; // 128MB
 		private boolean isCompress   = false;
+		private boolean isConcurrent = false;
+		private boolean isCompactIndex = false;
+		private int     compressLevel  = Deflater.BEST_SPEED;
+		private int     compressBlocks = 16;    // decompressed blocks kept in memory
 		private long    block_size   = 1 << 14; //  64KB
+		private int     maxMappedBlocks = 0;    // no limit
+		private Durability durability   = Durability.NONE;
+		private long    commitInterval  = 1000; // milliseconds between background commits
+		private double  compactThreshold = 0;   // fragmentation triggering background compaction, 0 for none
+		private long    compactInterval = 1000; // milliseconds between checks of fragmentation
+		private boolean isDedup      = false;
+		private boolean isReadOnly   = false;
+		private BlockStorage storage = BlockStorage.MMAP;
+		private Executor asyncExecutor = null;  // the shared IoExecutor
+		private boolean isMetrics    = false;
 
 		// constructor for the builder
 		public Builder( String DataCachePath, String IndexCachePath) {
@@ -246,6 +502,7 @@ public class IndexCache implements Closeable {
 			this.IndexCachePath = IndexCachePath;
 		}
 
+		// size of the in-memory LRU cache of index entries in bytes, 0 disables it
 		public Builder withLRUCacheSize( int size ) { 
 			this.LruCacheSize = size; 
 			return this; 
@@ -262,13 +519,108 @@ public class IndexCache implements Closeable {
 			return this; 
 		}
 
+		// allow any number of threads to call get() at the same time without locking,
+		// along with one thread calling put()
+		public Builder withConcurrentReaders() {
+			this.isConcurrent = true;
+			return this;
+		}
+
+		// keep at most this many blocks of each file mapped at a time, blocks not touched
+		// lately are dropped when the limit is reached (0 for no limit)
+		public Builder withMaxMappedBlocks( int blocks ) {
+			this.maxMappedBlocks = blocks;
+			return this;
+		}
+
+		// store the index in compact format, refer COMPACT INDEX
+		public Builder withCompactIndex() {
+			this.isCompactIndex = true;
+			return this;
+		}
+
 		public Builder compressCache() {  
 			this.isCompress = true;
 			return this;
 		}
 
-		// invoke the private constructor of parent class and pass the builder
+		// compress the data cache with the given java.util.zip.Deflater level (1 - fastest, 9 - smallest)
+		public Builder compressCache( int level ) {
+			this.isCompress    = true;
+			this.compressLevel = level;
+			return this;
+		}
+
+		// number of decompressed blocks of a compressed cache kept in memory for reading
+		public Builder withCompressedBlockCache( int blocks ) {
+			this.compressBlocks = blocks;
+			return this;
+		}
+
+		// commit the cache in background, refer DURABILITY
+		public Builder withDurability( Durability durability ) {
+			this.durability = durability;
+			return this;
+		}
+
+		// commit the cache in background at least every intervalMillis milliseconds, refer DURABILITY
+		public Builder withDurability( Durability durability, long intervalMillis ) {
+			this.durability     = durability;
+			this.commitInterval = intervalMillis;
+			return this;
+		}
+
+		// compact the cache in background whenever its fragmentation reaches the given ratio
+		// (0 - 1), refer COMPACTION. This implies withConcurrentReaders().
+		public Builder withCompaction( double fragmentation ) {
+			this.compactThreshold = fragmentation;
+			this.isConcurrent     = true;
+			return this;
+		}
+
+		// same as withCompaction(fragmentation), checking the fragmentation every intervalMillis milliseconds
+		public Builder withCompaction( double fragmentation, long intervalMillis ) {
+			this.compactInterval = intervalMillis;
+			return withCompaction(fragmentation);
+		}
+
+		// open the existing cache without ever writing to it, refer READ ONLY
+		public Builder readOnly() {
+			this.isReadOnly = true;
+			return this;
+		}
+
+		// store identical items only once, refer DEDUPLICATION
+		public Builder withDeduplication() {
+			this.isDedup = true;
+			return this;
+		}
+
+		// hold the blocks of the files in memory maps (default) or direct buffers, refer STORAGE
+		public Builder withStorage( BlockStorage storage ) {
+			this.storage = storage;
+			return this;
+		}
+
+		// keep metrics of the cache and register them over JMX while it is open, refer CacheMetrics
+		public Builder withMetrics() {
+			this.isMetrics = true;
+			return this;
+		}
+
+		// run getAsync() and putAsync() on this executor, refer ASYNCHRONOUS ACCESS
+		public Builder withAsyncExecutor( Executor executor ) {
+			this.asyncExecutor = executor;
+			return this;
+		}
+
+		// invoke the private constructor of parent class and pass the builder, once the
+		// options are known to go together so that no file is created for nothing
 		public IndexCache build() throws Exception {
+			if (isReadOnly && (!isReader || durability != Durability.NONE || compactThreshold > 0))
+				throw new IllegalArgumentException("Only an existing cache can be opened read-only, without durability or compaction");
+			if (compactThreshold > 0 && (isCompress || isCompactIndex || isDedup))
+				throw new UnsupportedOperationException("Compaction is not supported by compressed, deduplicating caches or compact indexes");
 			return new IndexCache(this);
 		}
 	}
@@ -277,10 +629,21 @@ public class IndexCache implements Closeable {
 	private IndexCache(Builder builder) throws Exception {
 
 		LruCacheSize       = builder.LruCacheSize;
+		isConcurrent       = builder.isConcurrent;
+		readerViews        = isConcurrent ? new ThreadLocal<ReaderViews>() : null;
+
+		// the LRU cache is split into stripes so that concurrent readers only lock a small part of it
+		int stripes        = isConcurrent ? LRU_STRIPES : 1;
+		lru                = LruCacheSize > 0 ? new IndexEntryCache[stripes] : null;
+		for (int i = 0; lru != null && i < stripes; i++)
+			lru[i] = new IndexEntryCache(LruCacheSize / stripes);
 		lBytePosition      = 0;
-		data_maps          = new ArrayList<MappedByteBuffer>();
-		index_maps         = new ArrayList<MappedByteBuffer>();
+		isReadOnly         = builder.isReadOnly;
+		asyncExecutor      = builder.asyncExecutor != null ? builder.asyncExecutor : IoExecutor.get();
 		String mode;
+		Header indhead     = null;
+		String fileMode    = isReadOnly ? "r" : "rw";
+		FileChannel.MapMode mapMode = isReadOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
 
 		// do we need to invoke as a reader?
 		if (builder.isReader) { // existing index and data cache
@@ -296,44 +659,31 @@ public class IndexCache implements Closeable {
 
 			if(!Base.isValidPath(IndexCacheName)) 
 				throw new FileNotFoundException("Index cache file " + IndexCacheName + " not found!");
-			if(!Base.isValidPath(DataCacheName)) 
-				throw new FileNotFoundException("Data cache file " + DataCacheName + " not found!");
 
-			DataCacheFile  = new RandomAccessFile(DataCacheName,  "rw");
-			IndexCacheFile = new RandomAccessFile(IndexCacheName, "rw");
+			IndexCacheFile = new RandomAccessFile(IndexCacheName, fileMode);
 
-			// read the header to find out blocksize
-			Header indhead = ReadHeader( IndexCacheFile );
+			// read the header to find out blocksize and how much was written
+			indhead        = ReadHeader( IndexCacheFile );
 
 			// TODO: Header consistency check - hash comparison, cache name same etc.
+			if (indhead.getLayout() != LAYOUT_VERSION)
+				throw new IOException("Index cache file " + IndexCacheName + " has an unsupported layout");
 
 			lBlockSize     = indhead.getBlockSize();
-			
-			MappedByteBuffer m = null;
-			// next we will map the entire index from the file to mapped byte buffers
-			long fileSize   = IndexCacheFile.getChannel().size();     // determine full file size
-			long NoOfMaps   = (fileSize - FIXED_HEADER_SIZE) / lBlockSize;
-			for (int i = 0; i < NoOfMaps; i++) {
-				m = IndexCacheFile.getChannel().map(FileChannel.MapMode.READ_WRITE, FIXED_HEADER_SIZE + lBlockSize * i, lBlockSize * (i + 1));
-
-				index_maps.add(m);
-			}
-			NoOfEntryInIndex = (fileSize - FIXED_HEADER_SIZE) / INDEX_ENTRY_SIZE;
-
-			// next we will map the entire data from the file to mapped byte buffers
-			fileSize   = DataCacheFile.getChannel().size();     // determine full file size
-			NoOfMaps   = (int) ((fileSize - FIXED_HEADER_SIZE) / lBlockSize);
-			for (int i = 0; i < NoOfMaps; i++) {
-				m = DataCacheFile.getChannel().map(FileChannel.MapMode.READ_WRITE, FIXED_HEADER_SIZE + lBlockSize * i, lBlockSize * (i + 1));
-
-				data_maps.add(m);
+			isCompactIndex = (indhead.getFlags() & FLAG_COMPACT) != 0;
+			isDedup        = (indhead.getFlags() & FLAG_DEDUP) != 0;
+			activeGen      = (indhead.getFlags() & FLAG_GENERATION) != 0 ? 1 : 0;
+
+			// the builder can not know these of an existing cache
+			if (builder.compactThreshold > 0 && (isCompactIndex || isDedup)) {
+				IndexCacheFile.close();
+				throw new UnsupportedOperationException("Compaction is not supported by deduplicating caches or compact indexes");
 			}
 
-			DataMapCount            = (int) NoOfMaps;
-			CurrentMapRemainingByte = m.capacity() - m.limit();
-			dataWrittenSoFar        = (NoOfMaps - 1) * lBlockSize + m.limit();
-			m = null;
+			if(!Base.isValidPath(_dataFileName(activeGen))) 
+				throw new FileNotFoundException("Data cache file " + _dataFileName(activeGen) + " not found!");
 
+			DataCacheFile  = new RandomAccessFile(_dataFileName(activeGen), fileMode);
 		}
 		else { // new index and data cache
 
@@ -355,24 +705,116 @@ public class IndexCache implements Closeable {
 			DataCacheFile  = new RandomAccessFile(DataCacheName,  "rw");
 			IndexCacheFile = new RandomAccessFile(IndexCacheName, "rw");
 
+			isCompactIndex = builder.isCompactIndex;
+			isDedup        = builder.isDedup;
+
 			// create the header in the index file
-			Header header = new Header (cacheLong, lBlockSize);
+			Header header = new Header (cacheLong, lBlockSize, _flags(0));
 			writeHeader(IndexCacheFile, header.serialise());
 			header = null;
+		}
+		header_map = IndexCacheFile.getChannel().map(mapMode, 0, FIXED_HEADER_SIZE);
+
+		if (isCompactIndex)
+			CompactIndexFile = new RandomAccessFile(IndexCachePath + CacheName + (isCompress ? ".zip.cix" : ".bin.cix"), fileMode);
+
+		lIndexPerBlock  = lBlockSize / INDEX_ENTRY_SIZE;
+		maxMappedBlocks = builder.maxMappedBlocks;
+		storage         = builder.storage;
+		entrySeq        = isCompactIndex ? null : new AtomicIntegerArray(ENTRY_SEQ_STRIPES);
+
+		metrics = !builder.isMetrics ? null : CacheMetrics.register("IndexCache", CacheName, new DoubleSupplier() {
+			public double getAsDouble() {
+				return getLruHitRatio();
+			}
+		});
+
+		// no block of any file is mapped here - a block is mapped the first time it is touched
+		data_maps    = new MapTable(DataCacheFile.getChannel(),  mapMode, 0,                 lBlockSize, maxMappedBlocks, storage, metrics);
+		generations[activeGen] = data_maps;
+		index_maps   = new MapTable(IndexCacheFile.getChannel(), mapMode, FIXED_HEADER_SIZE, lBlockSize, maxMappedBlocks, storage, metrics);
+		compact_maps = isCompactIndex ? new MapTable(CompactIndexFile.getChannel(), mapMode, 0, lBlockSize, maxMappedBlocks, storage, metrics) : null;
+		store        = isCompress ? new CompressedBlockStore(DataCacheFile, DataCachePath + CacheName + ".zip.dir", 
+		                              (int) lBlockSize, builder.compressLevel, builder.compressBlocks, isReadOnly) : null;
+
+		if (builder.isReader) {
+
+			// how much was written is known from the header, the files only
+			// tell how many blocks they have (mapped blocks may be unused)
+			NoOfEntryInIndex = indhead.getEntries();
+			IndexMapCount    = (int) ((IndexCacheFile.length() - FIXED_HEADER_SIZE) / lBlockSize);
+			index_maps.addUnmapped(IndexMapCount);
+
+			if (isCompactIndex) {
+				compactWritten  = indhead.getCompactWritten();
+				CompactMapCount = (int) (CompactIndexFile.length() / lBlockSize);
+				compact_maps.addUnmapped(CompactMapCount);
+
+				// the frame of the next entry continues where the last entry ended
+				if (NoOfEntryInIndex % COMPACT_FRAME_SIZE != 0) {
+					long[] last = new long[2];
+					_getCompactAddress(NoOfEntryInIndex - 1, last);
+					compactExpected = last[0] + last[1];
+				}
+			}
 
+			if (isCompress) { // compressed data is not mapped
+				dataWrittenSoFar = store.size();
+				CurrentMapRemainingByte = 0;
+
+				if (NoOfEntryInIndex > 0) {
+					long[] last = new long[2];
+					if (isCompactIndex) _getCompactAddress(NoOfEntryInIndex - 1, last);
+					else System.arraycopy(_readEntry(NoOfEntryInIndex - 1), 0, last, 0, 2);
+					if ((last[0] & POS_MASK) + last[1] > dataWrittenSoFar) {
+						store.close();                   // nothing pending, nothing is written
+						if (metrics != null) metrics.close();
+						if (CompactIndexFile != null) CompactIndexFile.close();
+						DataCacheFile.close();
+						IndexCacheFile.close();
+						throw new IOException("Index cache file " + IndexCacheName + " points past the compressed data, refer DURABILITY");
+					}
+				}
+			}
+			else {
+				dataWrittenSoFar = indhead.getDataWritten();
+				DataMapCount     = (int) (DataCacheFile.length() / lBlockSize);
+				data_maps.addUnmapped(DataMapCount);
+				CurrentMapRemainingByte = DataMapCount * lBlockSize - dataWrittenSoFar;
+
+				// the file of the other generation is only there if a compaction was interrupted,
+				// the items left in it are moved by the next compact()
+				if (Base.isValidPath(_dataFileName(1 - activeGen))) {
+					OldDataCacheFile = new RandomAccessFile(_dataFileName(1 - activeGen), fileMode);
+					oldGenBytes      = OldDataCacheFile.length();
+					generations[1 - activeGen] = new MapTable(OldDataCacheFile.getChannel(), mapMode, 0, lBlockSize, maxMappedBlocks, storage, metrics);
+					generations[1 - activeGen].addUnmapped((int) (oldGenBytes / lBlockSize));
+				}
+			}
+			deadBytes[activeGen] = indhead.getDead();
+		}
+		else {
 			NoOfEntryInIndex        = 0; // so far no item has been put
 			DataMapCount            = 0;
 			IndexMapCount           = 0;
 			CurrentMapRemainingByte = 0;
 			dataWrittenSoFar        = 0;
 		}
-		//isReadOnly         = builder.isReader;
-		lIndexPerBlock     = lBlockSize / INDEX_ENTRY_SIZE;
+		_publish();
+
+		String prefix = IndexCacheName.substring(0, IndexCacheName.length() - "idx".length()) + "dedup.";
+		dedup = isDedup && !isReadOnly ? new KeyIndex(prefix, lBlockSize, 0, 0) : null;
+
+		// what is there at this point is already on the disk or was written back at close
+		flusher   = builder.durability == Durability.NONE ? null : new Flusher(builder.durability, builder.commitInterval);
+		compactor = builder.compactThreshold > 0 ? new Compactor(builder.compactThreshold, builder.compactInterval) : null;
 		
-		trace ("Mode               : " + mode);
-		trace ("Data file created  : " + DataCacheName);
-		trace ("Index file created : " + IndexCacheName);
-		trace ("Block size         : " + lBlockSize);
+		if (Trace.ENABLED) {
+			Trace.event("Mode               : {}", mode);
+			Trace.event("Data file created  : {}", DataCacheName);
+			Trace.event("Index file created : {}", IndexCacheName);
+			Trace.event("Block size         : {}", lBlockSize);
+		}
 	}
 
 	/* ************************************************************************
@@ -397,231 +839,1591 @@ public class IndexCache implements Closeable {
 	  * of both index and data files are preserved.
 	  */
 	public long put( byte[] bytes ) throws IOException {
+		_checkWritable();
+		long start = metrics != null ? System.nanoTime() : 0;
+		synchronized (writeLock) {
+
+			//TODO validate the input
+			//
+			int len   = bytes.length;
+
+			if (Trace.ENABLED) Trace.event("[PUT] Data size {}, current map size {}, data written so far {}", len, CurrentMapRemainingByte, dataWrittenSoFar);
+
+			// construct one index entry
+			long pos = dataWrittenSoFar;
+
+			// an item stored already only gets an index entry, refer DEDUPLICATION
+			long same = dedup == null ? 0 : _findSame(bytes);
+			if (same != 0) {
+				long[] itemAddress = _getItemAddress(same);
+				long   itemPos     = itemAddress[0];
+				_reserveIndex(1);
+				_setItemAddress(itemPos, len);
+				_publish();
+				dedupCount++;
+				if (metrics != null) metrics.recordPut(System.nanoTime() - start, 0, 0);
+				return NoOfEntryInIndex;
+			}
 
-		//TODO validate the input
-		//
-		int level = 0;               // helps to identify the roll-back point
-		int len   = bytes.length;
+			// make sure both data and index have room, then write data before index
+			// so that an index entry never points to bytes that are not there yet
+			_reserveData(len);
+			_reserveIndex(1);
+			_writeData(bytes, 0, len);
+			_setItemAddress(pos | _genBit(), len);
+			_publish();
 
-		
-		trace ("[PUT] Data size    : " + len);
-		trace ("Current map size   : " + CurrentMapRemainingByte);
-		trace ("Data written so far: " + dataWrittenSoFar);
-		
-		// can the bytes be put in current map
-		if (CurrentMapRemainingByte >= len) {
-			try {
-				
-				trace ("writing in current : ");
-				
-				// construct one index entry
-				ItemAddress index = new ItemAddress(dataWrittenSoFar, len);
-				// DEBUG
-				System.out.print("[1pos = " + dataWrittenSoFar + ", len = " + len + "]");
-
-				// insert the original data
-				level = 1;
-				data_maps.get(DataMapCount - 1).put(bytes); // THIS NEEDS TO CHANGE TO ABSOLUTE PUT!!!!
-				dataWrittenSoFar += len;
-				CurrentMapRemainingByte -= len;
-
-				// insert the index
-				level = 20;
-				
-				_setItemAddress ( index.serialise() );
-				return NoOfEntryInIndex;
+			if (dedup != null) dedup.put(digest, NoOfEntryInIndex);
+			if (metrics != null) metrics.recordPut(System.nanoTime() - start, len, _blocksCrossed(pos, len));
+			return NoOfEntryInIndex;
+		}
+	}
+
+	/**
+	 * Stores all the given arrays of bytes in one go and returns their handlers in the 
+	 * same order. This is equivalent to calling <tt>put()</tt> for each element, but the
+	 * data and index maps needed for the whole batch are planned and created up front
+	 * and the index entries are written straight into the index maps without building
+	 * any intermediate object.
+	 * @param records byte[][] arrays of bytes to store
+	 * @return handlers long[] handlers of the stored arrays, <tt>handlers[i]</tt> belongs to <tt>records[i]</tt>
+	 * @throws IOException
+	 */
+	public long[] putAll( byte[][] records ) throws IOException {
+		return putAll(Arrays.asList(records));
+	}
+
+	/**
+	 * Same as <tt>putAll(byte[][])</tt> for a list of records.
+	 */
+	public long[] putAll( List<byte[]> records ) throws IOException {
+		_checkWritable();
+		synchronized (writeLock) {
+
+			int n = records.size();
+			long[] handlers = new long[n];
+			if (n == 0) return handlers;
+
+			// every record is looked up on its own, refer DEDUPLICATION
+			if (dedup != null) {
+				for (int i = 0; i < n; i++) handlers[i] = put(records.get(i));
+				return handlers;
+			}
+
+			// plan the growth of both the caches for the whole batch
+			long totalBytes = 0;
+			for (int i = 0; i < n; i++)
+				totalBytes += records.get(i).length;
+
+			if (Trace.ENABLED) Trace.event("[PUT ALL] Records {}, bytes {}", n, totalBytes);
+
+			_reserveData(totalBytes);
+			_reserveIndex(n);
+
+			// write all the data first...
+			long[] positions = new long[n];
+			for (int i = 0; i < n; i++) {
+				byte[] bytes = records.get(i);
+				positions[i] = dataWrittenSoFar | _genBit();
+				if (metrics != null) metrics.recordWrite(bytes.length, _blocksCrossed(dataWrittenSoFar, bytes.length));
+				_writeData(bytes, 0, bytes.length);
 			}
-			catch (Exception e) {
-				e.printStackTrace();
+
+			// ...then the index entries, one run per index map
+			int i = 0;
+			while (i < n && isCompactIndex) {
+				_setItemAddress(positions[i], records.get(i).length);
+				handlers[i++] = NoOfEntryInIndex;
 			}
-			finally {
-				// Rollback baby! Fun is over!
+			while (i < n) {
+				long slot = NoOfEntryInIndex;
+				ByteBuffer m = index_maps.get((int) (slot / lIndexPerBlock));
+				int offset = (int) ((slot % lIndexPerBlock) * INDEX_ENTRY_SIZE);
+				int run    = (int) Math.min(n - i, lIndexPerBlock - slot % lIndexPerBlock);
+				for (int j = 0; j < run; j++, i++) {
+					m.putLong(offset,     positions[i]);
+					m.putLong(offset + 8, records.get(i).length);
+					offset += INDEX_ENTRY_SIZE;
+					handlers[i] = ++NoOfEntryInIndex;
+				}
 			}
+			_publish();
+			return handlers;
 		}
-		else {  // we need new map!
-			    // but we will try to put as much as we can in
-				// current map first before creating a new map
+	}
 
-			// create index construct
-			ItemAddress index = new ItemAddress(dataWrittenSoFar, len);	
-			//DEBUG
-			System.out.print("[2pos = " + dataWrittenSoFar + ", len = " + len + "]");
+	/**
+	 * Same as <tt>putAll(byte[][])</tt> for records that are only available through an
+	 * iterator. The records are consumed in batches of at most <tt>PUT_ALL_BATCH</tt>
+	 * elements so that the number of records need not be known in advance.
+	 */
+	public long[] putAll( Iterator<byte[]> records ) throws IOException {
+
+		long[] handlers = new long[0];
+		int count = 0;
+		List<byte[]> batch = new ArrayList<byte[]>(PUT_ALL_BATCH);
+		while (records.hasNext()) {
+			batch.add(records.next());
+			if (batch.size() == PUT_ALL_BATCH || !records.hasNext()) {
+				long[] h = putAll(batch);
+				if (count + h.length > handlers.length)
+					handlers = Arrays.copyOf(handlers, Math.max(2 * handlers.length, count + h.length));
+				System.arraycopy(h, 0, handlers, count, h.length);
+				count += h.length;
+				batch.clear();
+			}
+		}
+		return Arrays.copyOf(handlers, count);
+	}
 
-			if (CurrentMapRemainingByte > 0) {
-				// insert part of original data
-				level = 1;
-				byte[] partialData = Arrays.copyOf(bytes, (int) CurrentMapRemainingByte);
-				data_maps.get(DataMapCount - 1).put(partialData); // THIS NEEDS TO CHANGE TO ABSOLUTE PUT!!!!
+	/**
+	 * Stores <tt>length</tt> bytes read from the channel and returns their handler, like
+	 * <tt>put(byte[])</tt> does. The bytes are read straight into the data maps block by
+	 * block, so the item never needs to fit in the heap. A <tt>FileChannel</tt> is copied
+	 * through <tt>FileChannel.transferFrom()</tt>, i.e. without passing through user space.
+	 * @param src ReadableByteChannel to read the item from, from its current position
+	 * @param length long number of bytes to read
+	 * @return handler long A sequential number that uniquely identifies the bytes stored
+	 * @throws EOFException if the channel ends before <tt>length</tt> bytes, nothing is stored then
+	 */
+	public long put( ReadableByteChannel src, long length ) throws IOException {
+		_checkWritable();
+		long start = metrics != null ? System.nanoTime() : 0;
+		synchronized (writeLock) {
 
-				// calculate remaining data
-				len = bytes.length;
-				bytes = Arrays.copyOfRange(bytes, (int) CurrentMapRemainingByte, len);
-				CurrentMapRemainingByte -= partialData.length;
-				dataWrittenSoFar += partialData.length;
-			}
+			if (Trace.ENABLED) Trace.event("[PUT] Stream size {}", length);
 
-			// how many maps do we need
-			level = 2;
-			int mapsNeeded = (int) Math.ceil( (double)bytes.length / (double)lBlockSize );
-			MappedByteBuffer m;
-			for (int i = 0; i < mapsNeeded; i++) {
-				
-				trace ("Adding new map     : ");
-				
-				m = DataCacheFile.getChannel().map(FileChannel.MapMode.READ_WRITE, (NoOfEntryInIndex + i) * lBlockSize, lBlockSize);
-				m.put(bytes, 0, (int) Math.min(bytes.length, lBlockSize));
-				data_maps.add(m);
-				DataMapCount++;
-				CurrentMapRemainingByte = lBlockSize - (int) Math.min(bytes.length, lBlockSize);
-				dataWrittenSoFar += Math.min(bytes.length, lBlockSize);
-				len = bytes.length;
-				bytes = Arrays.copyOfRange(bytes, (int) Math.min(bytes.length, lBlockSize), len);
-			}
-
-			// add index
-			level = 20;
-			
-			_setItemAddress ( index.serialise() );
+			long pos = dataWrittenSoFar;
+			_reserveData(length);
+			_reserveIndex(1);
+			_writeData(src, length);
+			_setItemAddress(pos | _genBit(), length);
+			_publish();
 
+			if (metrics != null) metrics.recordPut(System.nanoTime() - start, length, _blocksCrossed(pos, length));
 			return NoOfEntryInIndex;
 		}
-		// control reaches here only if some error has occurred
-		return -1;  
+	}
+
+	/**
+	 * Same as <tt>put(ReadableByteChannel, long)</tt> for an input stream.
+	 */
+	public long put( InputStream in, long length ) throws IOException {
+		return put(Channels.newChannel(in), length);
 	}
 
 	public byte[] get ( long handler ) throws Exception {
 		/* TODO:
 		 * - Can we use scattered read here?
-		 * - Validate handler input
 		 */
-		// read the index
-		ItemAddress itemAddress = _getItemAddress( handler );
-		// DEBUG
-		System.out.print("[3pos = " + itemAddress.getPosition() + ", len = " + itemAddress.getSize() + "]");
-		System.out.println ();
-		
-		// how many bytes to read
-		int bytesToRead  = itemAddress.getSize();
-
-		// create a buffer where we store the retrieved data before returning
-		byte[] buffer = new byte[bytesToRead];
+		long start = metrics != null ? System.nanoTime() : 0;
+		for (;;) {
+			// read the index
+			long[] itemAddress = _getItemAddress( handler );
+			if (Trace.ENABLED) Trace.event("[GET] Handler {}, pos {}, len {}", handler, itemAddress[0], itemAddress[1]);
+
+			// a deleted item has no bytes
+			if (itemAddress[1] == DELETED) return _recordGet(start, null, 0);
+			if (itemAddress[1] > Integer.MAX_VALUE)
+				throw new IllegalStateException("Item " + handler + " is too large for an array, use get(handler, channel)");
+
+			// how many bytes to read
+			int bytesToRead  = (int) itemAddress[1];
+
+			// create a buffer where we store the retrieved data before returning
+			byte[] buffer = new byte[bytesToRead];
+			long   itemPos = itemAddress[0];
+			if (bytesToRead == 0) return _recordGet(start, buffer, itemPos);
+
+			// compressed data is read through the decompressed block cache
+			if (store != null) {
+				store.read(itemPos, buffer, 0, bytesToRead);
+				return _recordGet(start, buffer, itemPos);
+			}
 
-		// determine the data map number from where to start reading
-		int mapNo  = (int) Math.ceil( (double)itemAddress.getPosition() / (double)lBlockSize );
-		if(mapNo == 0) mapNo = 1;
+			// if the item was moved by compact() meanwhile, its entry is read again
+			if (_readData(itemPos, buffer, bytesToRead)) return _recordGet(start, buffer, itemPos);
+		}
+	}
 
-		// determine the offset within a map from where to start reading data
-		int offset = (int) (itemAddress.getPosition() % lBlockSize );
+	// records a get() started at "start" in the metrics, if any, and returns its bytes
+	private byte[] _recordGet(long start, byte[] bytes, long itemPos) {
+		if (metrics != null) {
+			int len = bytes == null ? 0 : bytes.length;
+			metrics.recordGet(System.nanoTime() - start, len, _blocksCrossed(itemPos & POS_MASK, len));
+		}
+		return bytes;
+	}
 
-		// determine how many maps do we need to read
-		int noMapsToRead = (int) Math.ceil( (double)(offset + bytesToRead) / (double)lBlockSize );
+	// records a get(handler, channel) started at "start" in the metrics, if any, and returns the size
+	private long _recordStream(long start, long itemPos, long size) {
+		if (metrics != null) metrics.recordGet(System.nanoTime() - start, size, _blocksCrossed(itemPos & POS_MASK, size));
+		return size;
+	}
 
-		int start = 0;
-		for ( int i = 1; i <= noMapsToRead; i++ ) {
+	// blocks after the first one an item of "len" bytes at "pos" spans
+	private long _blocksCrossed(long pos, long len) {
+		return len == 0 ? 0 : (pos + len - 1) / lBlockSize - pos / lBlockSize;
+	}
 
-			// set the position to the offset (the start point for reading data)
-			data_maps.get(mapNo - 1).position(offset);
+	/**
+	 * Writes the bytes stored against the handler to the channel and returns their number.
+	 * Unlike <tt>get(long)</tt>, the item is never built up in the heap. The bytes are sent
+	 * through <tt>FileChannel.transferTo()</tt>, which lets the operating system copy them
+	 * straight from the page cache to files and sockets. Compressed items are decompressed
+	 * and written one block at a time.
+	 * @param handler long the handler returned by <tt>put()</tt>
+	 * @param dst WritableByteChannel to write the item to
+	 * @return number of bytes written, -1 if the item is deleted
+	 */
+	public long get ( long handler, WritableByteChannel dst ) throws Exception {
 
-			// amount of data present in current map
-			int DataToReadFromThisMap = (int) (lBlockSize - offset);
+		// a generation is not retired while items are streamed, refer _compact()
+		long start = metrics != null ? System.nanoTime() : 0;
+		streamingReaders.incrementAndGet();
+		try {
+			long[] itemAddress = _getItemAddress( handler );
+			long   pos         = itemAddress[0];
+			long   size        = itemAddress[1];
+			if (size == DELETED) return -1;
+
+			if (store != null) {
+				byte[] chunk = new byte[(int) Math.min(size, lBlockSize)];
+				for (long done = 0; done < size; ) {
+					int n = (int) Math.min(size - done, chunk.length);
+					store.read(pos + done, chunk, 0, n);
+					ByteBuffer b = ByteBuffer.wrap(chunk, 0, n);
+					while (b.hasRemaining()) dst.write(b);
+					done += n;
+				}
+				return _recordStream(start, pos, size);
+			}
 
-			// how many bytes to copy from current map
-			int len = (int) Math.min(bytesToRead, DataToReadFromThisMap);
+			MapTable maps = generations[(int) (pos >>> GEN_SHIFT)];
+			if (!maps.writesThrough()) {
+				// the file may not have the bytes yet, they are written from the blocks, refer STORAGE
+				for (long p = pos & POS_MASK, end = p + size; p < end; ) {
+					int offset = (int) (p % lBlockSize);
+					int chunk  = (int) Math.min(end - p, lBlockSize - offset);
+					ByteBuffer m = maps.get((int) (p / lBlockSize)).duplicate();
+					m.limit(offset + chunk).position(offset);
+					while (m.hasRemaining()) dst.write(m);
+					p += chunk;
+				}
+				return _recordStream(start, pos, size);
+			}
 
-			// get(dst, start, length) method copies "length" bytes from map into the 
-			// buffer, starting at the current position of this map and at the given "start" 
-			// in the buffer. The position of this map is then also incremented by "length".
-			data_maps.get(mapNo - 1).get(buffer, start, len);
-			
-			
-			// DEBUG
-			System.out.println("[mapNo = " + mapNo + ", Offset = " + offset + ", start = " + start + ", len = " + len + "] buffer: [" + (new String(buffer, "UTF-16BE")) + "]");
-			
-			mapNo++;
-			offset = 0;
-			start += len;
-			bytesToRead -= len;
+			FileChannel file = maps.channel();
+			for (long done = 0; done < size; )
+				done += file.transferTo((pos & POS_MASK) + done, size - done, dst);
+			return _recordStream(start, pos, size);
 		}
+		finally {
+			streamingReaders.decrementAndGet();
+		}
+	}
 
-		return buffer;
+	/**
+	 * Returns the array of bytes stored against the handler, like <tt>get()</tt> does, without
+	 * blocking the calling thread, refer ASYNCHRONOUS ACCESS. The future completes with
+	 * <tt>null</tt> if the item is deleted and exceptionally with whatever <tt>get()</tt>
+	 * would throw.
+	 * @param handler long the handler returned by <tt>put()</tt>
+	 * @throws IllegalStateException if the cache is not built <tt>withConcurrentReaders()</tt>
+	 */
+	public CompletableFuture<byte[]> getAsync( long handler ) {
+		if (!isConcurrent)
+			throw new IllegalStateException("Cache " + CacheName + " is not built with concurrent readers");
+		CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+		_submitGet(handler, result);
+		return result;
 	}
 
-	private long _setItemAddress(byte[] bytes) throws IOException {
-		
+	/**
+	 * Stores the array of bytes, like <tt>put()</tt> does, without blocking the calling
+	 * thread and completes the future with the handler, refer ASYNCHRONOUS ACCESS. Items put
+	 * asynchronously one after the other are not necessarily stored in that order.
+	 * @param bytes byte[] the array of bytes to store, must not be changed until the future completes
+	 */
+	public CompletableFuture<Long> putAsync( final byte[] bytes ) {
+		final CompletableFuture<Long> result = new CompletableFuture<Long>();
+		asyncExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					result.complete(put(bytes));
+				}
+				catch (Throwable e) {
+					result.completeExceptionally(e);
+				}
+			}
+		});
+		return result;
+	}
 
-		trace ("Adding index entry: ");
-		
-		// how do we know if we have space in current map or we need a new one?
-		// thanks to "all-day-breakfast" optimization, we have a simple way!
-		if ((NoOfEntryInIndex > lIndexPerBlock && NoOfEntryInIndex % lIndexPerBlock == 0) || NoOfEntryInIndex == 0)  // brilliance!
-		{
-			MappedByteBuffer m = IndexCacheFile.getChannel().map(FileChannel.MapMode.READ_WRITE, NoOfEntryInIndex * lBlockSize, lBlockSize);
-			index_maps.add(m);
-			IndexMapCount++;
-			trace ("Added one map");
-		}
-		
-		String s = new String (bytes, "UTF-8");
-		trace (s);
-		
-		index_maps.get( (int) (IndexMapCount - 1) ).put(bytes);
-		
-		NoOfEntryInIndex++;
-		return 0;
+	private void _submitGet(final long handler, final CompletableFuture<byte[]> result) {
+		asyncExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					_getAsync(handler, result);
+				}
+				catch (Throwable e) {
+					result.completeExceptionally(e);
+				}
+			}
+		});
 	}
-	private ItemAddress _getItemAddress(long handler) {
-		/*
-		 * TODO: Add LRU Cache
-		 */
 
-		byte[] dst = new byte[INDEX_ENTRY_SIZE];
+	// runs on the executor - hot items are copied right away, cold ones are read from the file
+	private void _getAsync(long handler, CompletableFuture<byte[]> result) throws Exception {
+
+		long start = metrics != null ? System.nanoTime() : 0;
+		for (;;) {
+			long[] itemAddress = _getItemAddress( handler );
+			long   pos         = itemAddress[0];
+			long   size        = itemAddress[1];
+			if (size == DELETED) {
+				result.complete(null);
+				return;
+			}
 
-		// determine the map number in which this index resides
-		// one index entry is 16 byte long, hence one map can store 
-		// lBlockSize/16 index entries
+			// compressed items are read through the decompressed block cache
+			if (store != null || size == 0 || size > Integer.MAX_VALUE) {
+				result.complete(get(handler));
+				return;
+			}
 
-		int indxMapNo = (int) Math.ceil((double)handler * (double)INDEX_ENTRY_SIZE / (double)lBlockSize);
-		int pos       = (int) (((handler-1) * INDEX_ENTRY_SIZE) % lBlockSize);
+			int      gen  = (int) (pos >>> GEN_SHIFT);
+			MapTable maps = generations[gen];
+			if (maps == null) continue;              // moved by compact() meanwhile
+
+			if (maps.getIfMapped((int) ((pos & POS_MASK) / lBlockSize)) != null) {
+				byte[] buffer = new byte[(int) size];
+				if (_readData(pos, buffer, (int) size)) {
+					result.complete(_recordGet(start, buffer, pos));
+					return;
+				}
+				continue;
+			}
 
-		index_maps.get(indxMapNo - 1).position(pos);
-		index_maps.get(indxMapNo - 1).get(dst);       // thanks to "all-day-breakfast", this is smooth...!
+			AsynchronousFileChannel file = _asyncFile(gen, maps);
+			if (file == null) continue;              // retired meanwhile
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			file.read(buffer, pos & POS_MASK, buffer, new ColdRead(handler, gen, maps, file, pos & POS_MASK, start, result));
+			return;
+		}
+	}
 
-		return new ItemAddress(dst);
+	// the asynchronous channel of the data cache file of the generation, null if it was retired
+	private AsynchronousFileChannel _asyncFile(int gen, MapTable maps) throws IOException {
+		synchronized (asyncLock) {
+			if (generations[gen] != maps) return null;
+			if (asyncFiles[gen] == null)
+				asyncFiles[gen] = AsynchronousFileChannel.open(Paths.get(_dataFileName(gen)), StandardOpenOption.READ);
+			return asyncFiles[gen];
+		}
 	}
 
+	/*
+	 * Reads a cold item through the asynchronous channel, a read at a time until the buffer
+	 * is full. Runs on the threads of the channel, not on the executor.
+	 */
+	private final class ColdRead implements CompletionHandler<Integer, ByteBuffer> {
+
+		private final long     handler;
+		private final int      gen;
+		private final MapTable maps;                 // the generation the item was found in
+		private final AsynchronousFileChannel file;
+		private final long     position;             // of the item in the file
+		private final long     start;                // of the getAsync() task, for the metrics
+		private final CompletableFuture<byte[]> result;
+
+		ColdRead(long handler, int gen, MapTable maps, AsynchronousFileChannel file, long position, long start, CompletableFuture<byte[]> result) {
+			this.handler  = handler;
+			this.gen      = gen;
+			this.maps     = maps;
+			this.file     = file;
+			this.position = position;
+			this.start    = start;
+			this.result   = result;
+		}
 
+		public void completed(Integer n, ByteBuffer buffer) {
+			if (n < 0)
+				failed(new EOFException("Item " + handler + " ends past the data cache file"), buffer);
+			else if (buffer.hasRemaining())
+				file.read(buffer, position + buffer.position(), buffer, this);
+			else
+				result.complete(_recordGet(start, buffer.array(), position));
+		}
 
+		public void failed(Throwable e, ByteBuffer buffer) {
+			// the item was moved and its generation retired meanwhile, read the entry again
+			if (generations[gen] != maps) _submitGet(handler, result);
+			else result.completeExceptionally(e);
+		}
+	}
 
-	private Header ReadHeader(RandomAccessFile file) throws IOException {
+	/*
+	 * Copies the "bytesToRead" bytes of the item at itemPos into the buffer. Returns false
+	 * if the generation of the item was retired by compact() meanwhile, i.e. if the item
+	 * was moved to a new generation.
+	 */
+	private boolean _readData(long itemPos, byte[] buffer, int bytesToRead) throws IOException {
 
-		byte[] headData = new byte[FIXED_HEADER_SIZE];
+		int      gen  = (int) (itemPos >>> GEN_SHIFT);
+		MapTable maps = generations[gen];
+		if (maps == null) return false;
 
-		file.seek(0);
-		file.read(headData);
-		// file.close();
+		// determine the data map number from where to start reading
+		int mapNo  = (int) ((itemPos & POS_MASK) / lBlockSize) + 1;
 
-		return new Header(headData);
-	}
+		// determine the offset within a map from where to start reading data
+		int offset = (int) ((itemPos & POS_MASK) % lBlockSize );
 
-	private void writeHeader(RandomAccessFile file, byte[] bytes) throws IOException {
+		// determine how many maps do we need to read
+		int noMapsToRead = (int) Math.ceil( (double)(offset + bytesToRead) / (double)lBlockSize );
 
-		file.write(bytes);
-		// file.close();
-	}
+		int start = 0;
+		try {
+			for ( int i = 1; i <= noMapsToRead; i++ ) {
 
-	/*
-	 * Helper methods 
-	 * ------------------------------------------------------------------
-	 */
+				// set the position to the offset (the start point for reading data)
+				ByteBuffer m = _dataMap(maps, gen, mapNo - 1);
+				m.position(offset);
 
-	public void close() throws IOException {
-        for (MappedByteBuffer mapping : data_maps)
-            _clean(mapping);
-		for (MappedByteBuffer mapping : index_maps)
-            _clean(mapping);
-        DataCacheFile.close();
-		IndexCacheFile.close();
-	}
+				// amount of data present in current map
+				int DataToReadFromThisMap = (int) (lBlockSize - offset);
+
+				// how many bytes to copy from current map
+				int len = (int) Math.min(bytesToRead, DataToReadFromThisMap);
+
+				// get(dst, start, length) method copies "length" bytes from map into the 
+				// buffer, starting at the current position of this map and at the given "start" 
+				// in the buffer. The position of this map is then also incremented by "length".
+				m.get(buffer, start, len);
+				if (Trace.ENABLED) Trace.event("[GET] Map {}, offset {}, len {}", mapNo, offset, len);
+				
+				mapNo++;
+				offset = 0;
+				start += len;
+				bytesToRead -= len;
+			}
+		}
+		catch (ClosedChannelException e) {
+			// the file of a retired generation is closed, but its maps made so far stay valid
+			if (generations[gen] == maps) throw e;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the array of bytes stored against the handler as a read-only <tt>ByteBuffer</tt>
+	 * without copying it out of the cache. When the bytes are contained in one data map
+	 * the returned buffer is a view over that map, starting at position 0 and ending at the
+	 * size of the stored item. Items that spread across multiple maps can not be viewed in
+	 * one piece and are copied into a heap buffer like <tt>get()</tt> does, so are the items
+	 * of a compressed cache.<br />
+	 * A view is only valid as long as the cache is open and its content must not be
+	 * expected to survive a <tt>close()</tt>. A view keeps showing the old bytes if the
+	 * item is updated or moved by <tt>compact()</tt> later.
+	 * @param handler long the handler returned by <tt>put()</tt>
+	 * @return a read-only ByteBuffer with the stored bytes between its position and limit, <tt>null</tt> if the item is deleted
+	 * @throws IllegalStateException if the item is larger than a buffer can be, refer <tt>get(handler, channel)</tt>
+	 * @throws Exception
+	 */
+	public ByteBuffer getView ( long handler ) throws Exception {
+
+		for (;;) {
+			long[] itemAddress = _getItemAddress( handler );
+			if (itemAddress[1] == DELETED) return null;
+			if (itemAddress[1] > Integer.MAX_VALUE)
+				throw new IllegalStateException("Item " + handler + " is too large for an array, use get(handler, channel)");
+
+			int      gen    = (int) (itemAddress[0] >>> GEN_SHIFT);
+			int      mapNo  = (int) ((itemAddress[0] & POS_MASK) / lBlockSize);
+			int      offset = (int) ((itemAddress[0] & POS_MASK) % lBlockSize);
+			MapTable maps   = generations[gen];
+
+			// spread across maps or compressed - fall back to a copy
+			if (offset + itemAddress[1] > lBlockSize || store != null) {
+				byte[] bytes = get(handler);
+				return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+			}
+
+			// the view gets its own position and limit, so the map itself is not disturbed
+			try {
+				if (maps != null) {
+					ByteBuffer view = maps.get(mapNo).asReadOnlyBuffer();
+					view.limit(offset + (int) itemAddress[1]).position(offset);
+					return view.slice();
+				}
+			}
+			catch (ClosedChannelException e) {
+				if (generations[gen] == maps) throw e;
+			}
+			// moved by compact() meanwhile, read the entry again
+		}
+	}
+
+	/**
+	 * Replaces the array of bytes stored against the handler, the handler stays the same.
+	 * The new bytes are appended to the data cache like <tt>put()</tt> does and the old ones
+	 * are left behind as dead bytes until <tt>compact()</tt>. A deleted item can be updated too.
+	 * @param handler long the handler returned by <tt>put()</tt>
+	 * @param bytes byte[] the new array of bytes to store
+	 * @throws UnsupportedOperationException if the cache is compressed, has a compact index,
+	 *         deduplicates or is opened read-only
+	 */
+	public void update( long handler, byte[] bytes ) throws IOException {
+		synchronized (writeLock) {
+
+			long[] entry = _writerEntry(handler);
+			long   gen   = entry[0] >>> GEN_SHIFT;
+			long   size  = entry[1];
+			int    len   = bytes.length;
+			long   pos   = dataWrittenSoFar;
+
+			_reserveData(len);
+			_writeData(bytes, 0, len);
+			_rewriteEntry(handler - 1, pos | _genBit(), len);
+			if (size != DELETED) deadBytes[(int) gen] += size;
+			_publish();
+		}
+	}
+
+	/**
+	 * Deletes the array of bytes stored against the handler, <tt>get()</tt> returns <tt>null</tt>
+	 * for the handler from then on. The bytes are left behind as dead bytes until <tt>compact()</tt>.
+	 * @param handler long the handler returned by <tt>put()</tt>
+	 * @throws UnsupportedOperationException if the cache is compressed, has a compact index,
+	 *         deduplicates or is opened read-only
+	 */
+	public void delete( long handler ) throws IOException {
+		synchronized (writeLock) {
+
+			long[] entry = _writerEntry(handler);
+			if (entry[1] == DELETED) return;
+
+			deadBytes[(int) (entry[0] >>> GEN_SHIFT)] += entry[1];
+			_rewriteEntry(handler - 1, entry[0], DELETED);
+			_publish();
+		}
+	}
+
+	/**
+	 * Returns the number of items put since the cache was opened which were stored already,
+	 * i.e. for which no bytes were written, refer <tt>Builder.withDeduplication()</tt>.
+	 */
+	public long getDeduplicatedCount() {
+		synchronized (writeLock) {
+			return dedupCount;
+		}
+	}
+
+	private void _checkWritable() {
+		if (isReadOnly)
+			throw new UnsupportedOperationException("Cache " + CacheName + " is opened read-only");
+	}
+
+	// validates the handler of update() or delete() and reads its entry
+	private long[] _writerEntry(long handler) throws IOException {
+		_checkWritable();
+		if (isCompress)
+			throw new UnsupportedOperationException("Items of a compressed cache can not be updated or deleted");
+		if (isCompactIndex)
+			throw new UnsupportedOperationException("Items of a compact index can not be updated or deleted");
+		if (isDedup)
+			throw new UnsupportedOperationException("Items of a deduplicating cache can not be updated or deleted");
+		if (handler < 1 || handler > NoOfEntryInIndex)
+			throw new IllegalArgumentException("Invalid handler: " + handler);
+		return _readEntry(handler - 1);
+	}
+
+	/**
+	 * Returns the share of dead bytes in the data cache (0 - 1), i.e. of the bytes of
+	 * items which were updated or deleted, or already moved by a running compaction.
+	 * A background compaction starts when this reaches the ratio given to
+	 * <tt>withCompaction()</tt>.
+	 */
+	public double getFragmentation() {
+		long dead = publishedDead;
+		long data = publishedData;
+		return data == 0 ? 0 : Math.min(1, (double) dead / data);
+	}
+
+	/**
+	 * Moves the live items to a new generation of the data cache and deletes the old one,
+	 * which reclaims the space of updated and deleted items, refer COMPACTION. Readers and
+	 * the writer keep working meanwhile, the writer is only held up while a small batch of
+	 * items is moved. A compaction cut short by <tt>close()</tt> is resumed by the next
+	 * one, also after the cache is opened again.
+	 * @throws UnsupportedOperationException if the cache is compressed, deduplicating or has a compact index
+	 */
+	public void compact() throws IOException, InterruptedException {
+		_checkWritable();
+		if (isCompactIndex || isCompress || isDedup)
+			throw new UnsupportedOperationException("Compaction is not supported by compressed, deduplicating caches or compact indexes");
+		synchronized (compactLock) {
+			_compact();
+		}
+	}
+
+	private void _compact() throws IOException, InterruptedException {
+
+		long end;
+		int  from;
+		synchronized (writeLock) {
+			if (OldDataCacheFile == null) _startGeneration();
+			from = 1 - activeGen;
+			end  = NoOfEntryInIndex;                 // later items are in the new generation anyway
+		}
+
+		for (long slot = 0; slot < end; ) {
+
+			if (compactor != null && compactor.closing) return;
+
+			synchronized (writeLock) {
+				for (long stop = Math.min(end, slot + COMPACT_BATCH); slot < stop; slot++) {
+
+					long[] entry = _readEntry(slot);
+					long   size  = entry[1];
+					if (size == DELETED || (entry[0] >>> GEN_SHIFT) != from) continue;
+
+					long pos = dataWrittenSoFar;
+					_reserveData(size);
+					_copyData(entry[0], size);
+					_rewriteEntry(slot, pos | _genBit(), size);
+					deadBytes[from] += size;
+				}
+				_publish();
+			}
+		}
+
+		// the moved items must be on the disk before the old generation is gone, and
+		// streams which found an item in the old generation must be done with it
+		if (flusher != null) flusher.sync();
+		else if (!storage.writesThrough()) {
+			synchronized (writeLock) {
+				_commitBlocks();
+			}
+		}
+		while (streamingReaders.get() > 0) Thread.sleep(1);
+		synchronized (writeLock) {
+			_retireGeneration(from);
+		}
+	}
+
+	// makes put() write to a new data cache file from now on
+	private void _startGeneration() throws IOException {
+
+		int gen = 1 - activeGen;
+		RandomAccessFile file = new RandomAccessFile(_dataFileName(gen), "rw");
+		file.setLength(0);
+
+		OldDataCacheFile = DataCacheFile;
+		oldGenBytes      = dataWrittenSoFar;
+		DataCacheFile    = file;
+		data_maps        = new MapTable(file.getChannel(), FileChannel.MapMode.READ_WRITE, 0, lBlockSize, maxMappedBlocks, storage, metrics);
+		generations[gen] = data_maps;
+		deadBytes[gen]   = 0;
+		activeGen        = gen;
+
+		dataWrittenSoFar        = 0;
+		CurrentMapRemainingByte = 0;
+		DataMapCount            = 0;
+		_publish();
+	}
+
+	// deletes the data cache file of a generation no item points to anymore
+	private void _retireGeneration(int gen) throws IOException {
+
+		// the maps made so far are not unmapped - a reader may still be reading an item it
+		// found in the generation before the item was moved
+		synchronized (asyncLock) {
+			generations[gen] = null;
+			if (asyncFiles[gen] != null) asyncFiles[gen].close();
+			asyncFiles[gen] = null;
+		}
+		OldDataCacheFile.close();
+		OldDataCacheFile = null;
+		oldGenBytes      = 0;
+		deadBytes[gen]   = 0;
+		new File(_dataFileName(gen)).delete();
+		_publish();
+	}
+
+	/*
+	 * Makes sure the data cache has enough mapped space to take "len" more bytes
+	 * after dataWrittenSoFar. Data map i always covers the bytes [i * lBlockSize,
+	 * (i + 1) * lBlockSize) of the data cache file.
+	 */
+	private void _reserveData(long len) throws IOException {
+
+		if (store != null) return;           // compressed data is not mapped
+
+		while (CurrentMapRemainingByte < len) {
+
+			if (Trace.ENABLED) Trace.event("Adding data map {}", DataMapCount);
+
+			data_maps.add();
+			DataMapCount++;
+			CurrentMapRemainingByte += lBlockSize;
+		}
+	}
+
+	/*
+	 * Makes sure the index cache has enough mapped space to take "n" more entries.
+	 * Index map i always covers the entries [i * lIndexPerBlock, (i + 1) * lIndexPerBlock).
+	 */
+	private void _reserveIndex(long n) throws IOException {
+
+		// a compact index needs one entry per frame in index maps, the payload
+		// is mapped as it is written
+		long entries = NoOfEntryInIndex + n;
+		if (isCompactIndex)
+			entries = (entries + COMPACT_FRAME_SIZE - 1) / COMPACT_FRAME_SIZE;
+
+		while (IndexMapCount * lIndexPerBlock < entries) {
+			index_maps.add();
+			IndexMapCount++;
+			if (Trace.ENABLED) Trace.event("Added index map {}", IndexMapCount - 1);
+		}
+	}
+
+	/*
+	 * Copies "len" bytes of "bytes" starting at "off" to the end of the data cache.
+	 * The space must have been reserved through _reserveData() before.
+	 */
+	private void _writeData(byte[] bytes, int off, int len) throws IOException {
+
+		if (store != null) {
+			store.append(bytes, off, len);
+			dataWrittenSoFar += len;
+			return;
+		}
+
+		while (len > 0) {
+			ByteBuffer m = data_maps.get((int) (dataWrittenSoFar / lBlockSize));
+			int offset = (int) (dataWrittenSoFar % lBlockSize);
+			int chunk  = (int) Math.min(len, lBlockSize - offset);
+
+			// the position is set every time since get() moves it too
+			m.position(offset);
+			m.put(bytes, off, chunk);
+
+			off                     += chunk;
+			len                     -= chunk;
+			dataWrittenSoFar        += chunk;
+			CurrentMapRemainingByte -= chunk;
+		}
+	}
+
+	/*
+	 * Appends "len" bytes read from the channel to the end of the data cache, straight
+	 * into the data maps. The space must have been reserved through _reserveData()
+	 * before. If the channel ends early nothing is appended to a mapped data cache, the
+	 * bytes appended to a compressed one are dead.
+	 */
+	private void _writeData(ReadableByteChannel src, long len) throws IOException {
+
+		if (store != null) {
+			ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(len, lBlockSize));
+			for (long done = 0; done < len; ) {
+				chunk.clear();
+				chunk.limit((int) Math.min(len - done, chunk.capacity()));
+				while (chunk.hasRemaining()) {
+					if (src.read(chunk) < 0) {
+						deadBytes[activeGen] += done;
+						throw new EOFException("Stream ended after " + (done + chunk.position()) + " of " + len + " bytes");
+					}
+				}
+				store.append(chunk.array(), 0, chunk.limit());
+				dataWrittenSoFar += chunk.limit();
+				done             += chunk.limit();
+			}
+			return;
+		}
+
+		long pos = dataWrittenSoFar;
+		long end = pos + len;
+		if (src instanceof FileChannel && data_maps.writesThrough()) {
+			// file to file, the pages written are the ones the data maps see
+			FileChannel file = DataCacheFile.getChannel();
+			while (pos < end) {
+				long n = file.transferFrom(src, pos, end - pos);
+				if (n <= 0) throw new EOFException("Stream ended after " + (pos - dataWrittenSoFar) + " of " + len + " bytes");
+				pos += n;
+			}
+		}
+		else {
+			while (pos < end) {
+				int offset = (int) (pos % lBlockSize);
+				int chunk  = (int) Math.min(end - pos, lBlockSize - offset);
+
+				// a duplicate, so the position of the map itself is not disturbed
+				ByteBuffer m = data_maps.get((int) (pos / lBlockSize)).duplicate();
+				m.limit(offset + chunk).position(offset);
+				while (m.hasRemaining())
+					if (src.read(m) < 0) throw new EOFException("Stream ended after " + (pos - dataWrittenSoFar + m.position() - offset) + " of " + len + " bytes");
+				pos += chunk;
+			}
+		}
+		dataWrittenSoFar        += len;
+		CurrentMapRemainingByte -= len;
+	}
+
+	/*
+	 * Appends "len" bytes of the item at itemPos (of any generation) to the end of the data
+	 * cache, map to map. The space must have been reserved through _reserveData() before.
+	 */
+	private void _copyData(long itemPos, long len) throws IOException {
+
+		MapTable from = generations[(int) (itemPos >>> GEN_SHIFT)];
+		long     src  = itemPos & POS_MASK;
+		while (len > 0) {
+			int offset = (int) (src % lBlockSize);
+			int chunk  = (int) Math.min(len, Math.min(lBlockSize - offset, lBlockSize - dataWrittenSoFar % lBlockSize));
+
+			ByteBuffer in  = from.get((int) (src / lBlockSize)).duplicate();
+			ByteBuffer out = data_maps.get((int) (dataWrittenSoFar / lBlockSize)).duplicate();
+			in.limit(offset + chunk).position(offset);
+			out.position((int) (dataWrittenSoFar % lBlockSize));
+			out.put(in);
+
+			src                     += chunk;
+			len                     -= chunk;
+			dataWrittenSoFar        += chunk;
+			CurrentMapRemainingByte -= chunk;
+		}
+	}
+
+	private long _setItemAddress(long pos, long size) throws IOException {
+
+		if (Trace.ENABLED) Trace.event("Adding index entry {}: pos {}, len {}", NoOfEntryInIndex, pos, size);
+
+		if (isCompactIndex) {
+			_setCompactAddress(pos, size);
+			return 0;
+		}
+
+		// thanks to "all-day-breakfast" optimization, an entry never spills over a map
+		ByteBuffer m = index_maps.get((int) (NoOfEntryInIndex / lIndexPerBlock));
+		int offset = (int) ((NoOfEntryInIndex % lIndexPerBlock) * INDEX_ENTRY_SIZE);
+		m.putLong(offset,     pos);
+		m.putLong(offset + 8, size);
+
+		NoOfEntryInIndex++;
+		return 0;
+	}
+
+	/*
+	 * Returns { itemPos, itemSize } of the index entry of the handler. The entry is
+	 * served from the LRU cache when possible, otherwise it is read from the index
+	 * maps and added to the LRU cache. The returned array is reused by the next call
+	 * of the same thread.
+	 */
+	private long[] _getItemAddress(long handler) throws IOException {
+
+		// only the entries published by the writer can be read
+		if (handler < 1 || handler > publishedEntries)
+			throw new IllegalArgumentException("Invalid handler: " + handler);
+
+		long[] address = isConcurrent ? _readerViews().address : this.address;
+
+		IndexEntryCache stripe = lru == null ? null : lru[(int) (handler & (lru.length - 1))];
+		if (stripe != null) {
+			synchronized (stripe) {
+				if (stripe.get(handler, address)) return address;
+			}
+		}
+
+		int seqNo = (int) ((handler - 1) & (ENTRY_SEQ_STRIPES - 1));
+		int seq   = 0;
+		if (isCompactIndex) {
+			_getCompactAddress(handler - 1, address);
+		}
+		else {
+			// determine the map number in which this index resides
+			// one index entry is 16 byte long, hence one map can store 
+			// lBlockSize/16 index entries
+			ByteBuffer m = index_maps.get((int) ((handler - 1) / lIndexPerBlock));
+			int pos            = (int) (((handler - 1) % lIndexPerBlock) * INDEX_ENTRY_SIZE);
+
+			// thanks to "all-day-breakfast", this is smooth...!
+			// the entry may be rewritten meanwhile, refer COMPACTION
+			do {
+				while (((seq = entrySeq.get(seqNo)) & 1) != 0) Thread.yield();
+				address[0] = m.getLong(pos);
+				address[1] = m.getLong(pos + 8);
+				Fences.loadFence();
+			} while (entrySeq.get(seqNo) != seq);
+		}
+
+		if (stripe != null) {
+			synchronized (stripe) {
+				// an entry rewritten since it was read is not cached, its
+				// rewriter may have removed it from the cache already
+				if (entrySeq == null || entrySeq.get(seqNo) == seq)
+					stripe.put(handler, address[0], address[1]);
+			}
+		}
+		return address;
+	}
+
+	/*
+	 * Rewrites the index entry at the given slot (handler - 1) under its seqlock and
+	 * removes it from the LRU cache, refer COMPACTION. Only called under the write lock.
+	 */
+	private void _rewriteEntry(long slot, long pos, long size) throws IOException {
+
+		ByteBuffer m = index_maps.get((int) (slot / lIndexPerBlock));
+		int offset = (int) ((slot % lIndexPerBlock) * INDEX_ENTRY_SIZE);
+		int seqNo  = (int) (slot & (ENTRY_SEQ_STRIPES - 1));
+
+		entrySeq.incrementAndGet(seqNo);             // odd - readers of the entry wait
+		Fences.storeFence();
+		m.putLong(offset,     pos);
+		m.putLong(offset + 8, size);
+		entrySeq.incrementAndGet(seqNo);             // even - readers of the entry retry
+
+		if (slot < dirtyFrom) dirtyFrom = slot;
+		if (lru != null) {
+			IndexEntryCache stripe = lru[(int) ((slot + 1) & (lru.length - 1))];
+			synchronized (stripe) {
+				stripe.remove(slot + 1);
+			}
+		}
+	}
+
+	/*
+	 * Reads the index entry at the given slot into writerEntry. Only called under the
+	 * write lock, hence the entry can not be rewritten meanwhile.
+	 */
+	private long[] _readEntry(long slot) throws IOException {
+		ByteBuffer m = index_maps.get((int) (slot / lIndexPerBlock));
+		int offset = (int) ((slot % lIndexPerBlock) * INDEX_ENTRY_SIZE);
+		writerEntry[0] = m.getLong(offset);
+		writerEntry[1] = m.getLong(offset + 8);
+		return writerEntry;
+	}
+
+	/*
+	 * Computes the digest of the bytes and returns the handler of an item stored already
+	 * with the same bytes, or 0. Refer DEDUPLICATION.
+	 */
+	private long _findSame(byte[] bytes) throws IOException {
+
+		// two 64 bit hashes in one pass, FNV-1a and a multiply-xorshift one
+		long h1 = 0xcbf29ce484222325L;
+		long h2 = 0x9E3779B97F4A7C15L ^ bytes.length;
+		for (byte b : bytes) {
+			h1 = (h1 ^ (b & 0xFF)) * 0x100000001b3L;
+			h2 = (h2 + (b & 0xFF)) * 0xff51afd7ed558ccdL;
+			h2 ^= h2 >>> 29;
+		}
+		for (int i = 0; i < 8; i++) {
+			digest[i]     = (byte) (h1 >>> (56 - 8 * i));
+			digest[i + 8] = (byte) (h2 >>> (56 - 8 * i));
+		}
+
+		// the digest index may be ahead of the index after a crash
+		long handler = dedup.get(digest);
+		if (handler == 0 || handler > NoOfEntryInIndex) return 0;
+
+		long[] itemAddress = _getItemAddress(handler);
+		long   itemPos     = itemAddress[0];
+		if (itemAddress[1] != bytes.length) return 0;
+
+		if (store != null) {
+			byte[] stored = new byte[bytes.length];
+			store.read(itemPos, stored, 0, stored.length);
+			return Arrays.equals(stored, bytes) ? handler : 0;
+		}
+
+		int  gen = (int) (itemPos >>> GEN_SHIFT);
+		long pos = itemPos & POS_MASK;
+		for (int i = 0; i < bytes.length; ) {
+			ByteBuffer m = generations[gen].get((int) (pos / lBlockSize));
+			int offset = (int) (pos % lBlockSize);
+			int n      = (int) Math.min(bytes.length - i, lBlockSize - offset);
+			for (int j = 0; j < n; j++)
+				if (m.get(offset + j) != bytes[i + j]) return 0;
+			i   += n;
+			pos += n;
+		}
+		return handler;
+	}
+
+	// itemPos bits of the active generation
+	private long _genBit() {
+		return (long) activeGen << GEN_SHIFT;
+	}
+
+	// full name of the data cache file of a generation
+	private String _dataFileName(int gen) {
+		return gen == 0 ? DataCacheName : DataCacheName + "." + gen;
+	}
+
+	/*
+	 * Adds the entry of the next item to a compact index, refer COMPACT INDEX.
+	 */
+	private void _setCompactAddress(long pos, long size) throws IOException {
+
+		// the first entry of a frame also adds the frame to the index maps
+		if (NoOfEntryInIndex % COMPACT_FRAME_SIZE == 0) {
+			long frame = NoOfEntryInIndex / COMPACT_FRAME_SIZE;
+			ByteBuffer m = index_maps.get((int) (frame / lIndexPerBlock));
+			int offset = (int) ((frame % lIndexPerBlock) * INDEX_ENTRY_SIZE);
+			m.putLong(offset,     pos);
+			m.putLong(offset + 8, compactWritten);
+			compactExpected = pos;
+		}
+
+		long gap = pos - compactExpected;
+		_putVarint((gap << 1) ^ (gap >> 63));  // zigzag, the gap can be negative
+		_putVarint(size);
+		compactExpected = pos + size;
+
+		NoOfEntryInIndex++;
+	}
+
+	private void _putVarint(long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			_putCompactByte((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		_putCompactByte((byte) v);
+	}
+
+	private void _putCompactByte(byte b) throws IOException {
+		if (compactWritten == CompactMapCount * lBlockSize) {
+			compact_maps.add();
+			CompactMapCount++;
+		}
+		compact_maps.get((int) (compactWritten / lBlockSize)).put((int) (compactWritten % lBlockSize), b);
+		compactWritten++;
+	}
+
+	/*
+	 * Decodes { itemPos, itemSize } of the entry at the given slot (handler - 1) of a
+	 * compact index by walking its frame from the first entry.
+	 */
+	private void _getCompactAddress(long slot, long[] address) throws IOException {
+
+		long frame = slot / COMPACT_FRAME_SIZE;
+		ByteBuffer m = index_maps.get((int) (frame / lIndexPerBlock));
+		int offset = (int) ((frame % lIndexPerBlock) * INDEX_ENTRY_SIZE);
+
+		long expected = m.getLong(offset);
+		long start    = m.getLong(offset + 8);
+		int  mapNo    = (int) (start / lBlockSize);
+		int  i        = (int) (start % lBlockSize);
+		ByteBuffer p = compact_maps.get(mapNo);
+
+		long pos = 0, size = 0;
+		for (long k = slot % COMPACT_FRAME_SIZE; k >= 0; k--) {
+			for (int v = 0; v < 2; v++) {              // gap, then size
+				long value = 0;
+				int  shift = 0;
+				byte b;
+				do {
+					if (i == lBlockSize) {             // the varint continues in the next map
+						p = compact_maps.get(++mapNo);
+						i = 0;
+					}
+					b = p.get(i++);
+					value |= (long) (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+
+				if (v == 0) pos  = expected + ((value >>> 1) ^ -(value & 1));
+				else        size = value;
+			}
+			expected = pos + size;
+		}
+		address[0] = pos;
+		address[1] = size;
+	}
+
+	/*
+	 * Makes everything written so far visible to the readers. The data and the index
+	 * entries are written before this volatile write, hence a reader that sees a
+	 * handler here also sees its bytes.
+	 */
+	private void _publish() {
+		publishedData    = dataWrittenSoFar + oldGenBytes;
+		publishedDead    = deadBytes[0] + deadBytes[1];
+		publishedEntries = NoOfEntryInIndex;
+
+		// In the durable modes the flusher writes the checkpoint once it is committed,
+		// blocks which do not write through and compressed data are checkpointed at
+		// close(), refer STORAGE and DURABILITY
+		if (flusher == null && !isReadOnly && storage.writesThrough() && store == null) _checkpoint();
+	}
+
+	// checkpoint in the header, entries last since they make the data reachable
+	private void _checkpoint() {
+		header_map.putLong(HEADER_FLAGS,   _flags(activeGen));
+		header_map.putLong(HEADER_DEAD,    deadBytes[activeGen]);
+		header_map.putLong(HEADER_DATA,    dataWrittenSoFar);
+		header_map.putLong(HEADER_COMPACT, compactWritten);
+		Fences.storeFence();                         // followers in other processes, refer follow()
+		header_map.putLong(HEADER_ENTRIES, NoOfEntryInIndex);
+	}
+
+	// writes back and forces the blocks which do not write through, then the checkpoint,
+	// like close() does without closing anything, refer STORAGE
+	private void _commitBlocks() throws IOException {
+		data_maps.forceAll();
+		index_maps.forceAll();
+		_checkpoint();
+		header_map.force();
+	}
+
+	// header flags of the cache when the given generation is the active one
+	private long _flags(int gen) {
+		return (isCompactIndex ? FLAG_COMPACT : 0) | (isDedup ? FLAG_DEDUP : 0) | (gen == 1 ? FLAG_GENERATION : 0);
+	}
+
+	/**
+	 * Blocks until the item of the given handler, and every item put before it, is
+	 * committed to the disk. With <tt>Durability.GROUP_COMMIT</tt> this makes the
+	 * background flusher commit right away, with <tt>Durability.PERIODIC</tt> it waits for the
+	 * next periodic commit.
+	 * @param handler long handler returned by <tt>put()</tt>, the commit ticket
+	 * @throws IOException if the commit failed or the cache is closed meanwhile
+	 * @throws IllegalStateException if the cache was built without durability
+	 */
+	public void awaitCommit(long handler) throws IOException, InterruptedException {
+		if (flusher == null)
+			throw new IllegalStateException("Cache " + CacheName + " is not built with durability");
+		if (handler < 1 || handler > publishedEntries)
+			throw new IllegalArgumentException("Invalid handler: " + handler);
+		flusher.await(handler);
+	}
+
+	/**
+	 * Blocks until every item put so far is committed to the disk, refer <tt>awaitCommit()</tt>.
+	 */
+	public void commit() throws IOException, InterruptedException {
+		long handler = publishedEntries;
+		if (handler > 0) awaitCommit(handler);
+	}
+
+	/**
+	 * Catches up with the writer of the cache in another process and returns the number of
+	 * items that can be read now, refer <tt>IndexCacheTailer</tt>. The entry count of the
+	 * header checkpoint is read through the shared map of the header, i.e. without any system
+	 * call, and only if it moved on are the blocks written since mapped and the new items
+	 * published to the readers of this cache. The writer writes the count after everything it
+	 * covers (and, in the durable modes, after committing it), so every item counted can be
+	 * read in full. Items are followed as they are appended; the writer must not compact the
+	 * cache while it is followed. For a cache that is not opened <tt>readOnly()</tt> this just
+	 * returns the number of items put so far.
+	 * @throws UnsupportedOperationException if the cache is compressed or its storage is not <tt>MMAP</tt>
+	 * @throws IllegalStateException if the writer started a new generation of the data cache
+	 */
+	public long follow() throws IOException {
+		if (!isReadOnly) return publishedEntries;
+		if (!storage.writesThrough())
+			throw new UnsupportedOperationException("Caches can only be followed through memory maps");
+		synchronized (writeLock) {
+
+			long entries = header_map.getLong(HEADER_ENTRIES);
+			Fences.loadFence();                      // the rest of the header is at least as new
+			if (entries == NoOfEntryInIndex) return entries;
+
+			if (store != null)
+				throw new UnsupportedOperationException("Compressed caches can not be followed");
+			if ((header_map.getLong(HEADER_FLAGS) & FLAG_GENERATION) != (_flags(activeGen) & FLAG_GENERATION))
+				throw new IllegalStateException("Cache " + CacheName + " was compacted while it was followed");
+
+			long data    = header_map.getLong(HEADER_DATA);
+			long compact = header_map.getLong(HEADER_COMPACT);
+			long frames  = isCompactIndex ? (entries + COMPACT_FRAME_SIZE - 1) / COMPACT_FRAME_SIZE : entries;
+
+			// the writer extends the files by whole blocks before writing to them
+			_addBlocks(data_maps, data);
+			_addBlocks(index_maps, frames * INDEX_ENTRY_SIZE);
+			if (isCompactIndex) _addBlocks(compact_maps, compact);
+			DataMapCount  = data_maps.size();
+			IndexMapCount = index_maps.size();
+			if (isCompactIndex) CompactMapCount = compact_maps.size();
+
+			dataWrittenSoFar = data;
+			compactWritten   = compact;
+			NoOfEntryInIndex = entries;
+			_publish();
+			return entries;
+		}
+	}
+
+	// registers the blocks of the table needed to hold the given number of bytes
+	private void _addBlocks(MapTable maps, long bytes) throws IOException {
+		int blocks = (int) ((bytes + lBlockSize - 1) / lBlockSize);
+		if (blocks > maps.size()) maps.addUnmapped(blocks - maps.size());
+	}
+
+	/**
+	 * Returns the number of items committed to the disk so far, i.e. the highest
+	 * handler that survives a crash. Without durability this is always 0.
+	 */
+	public long getCommittedEntryCount() {
+		return flusher == null ? 0 : flusher.committed;
+	}
+
+	/*
+	 * The background thread committing the cache, refer DURABILITY. The watermarks
+	 * committed so far are only touched by the flusher thread.
+	 */
+	private final class Flusher implements Runnable {
+
+		private final Durability durability;
+		private final long       interval;                   // milliseconds between commits
+		private final Thread     thread;
+
+		private int              committedGen;               // activeGen as of the last commit
+		private long             committedData;              // dataWrittenSoFar as of the last commit
+		private long             committedCompact;           // compactWritten as of the last commit
+		private long             committedDead;              // deadBytes of the active generation as of the last commit
+		private volatile long    committed;                  // NoOfEntryInIndex as of the last commit
+
+		// guarded by this
+		private long             requested;                  // highest handler a writer waits for
+		private boolean          syncRequested;              // a commit is needed right away
+		private long             started;                    // commits started so far
+		private long             completed;                  // commits completed so far
+		private boolean          closing;
+		private IOException      error;                      // why the flusher stopped, if it failed
+
+		Flusher(Durability durability, long interval) {
+			this.durability       = durability;
+			this.interval         = Math.max(1, interval);
+			this.committed        = NoOfEntryInIndex;
+			this.committedGen     = activeGen;
+			this.committedData    = dataWrittenSoFar;
+			this.committedCompact = compactWritten;
+			this.committedDead    = deadBytes[activeGen];
+			this.thread           = new Thread(this, "IndexCache-flusher-" + CacheName);
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		public void run() {
+			try {
+				boolean last = false;
+				while (!last) {
+					synchronized (this) {
+						long deadline = System.currentTimeMillis() + interval;
+						long wait;
+						while (!closing && !syncRequested && !(durability == Durability.GROUP_COMMIT && requested > committed)
+								&& (wait = deadline - System.currentTimeMillis()) > 0)
+							wait(wait);
+						last          = closing;
+						syncRequested = false;
+						started++;
+					}
+					_commit();
+					synchronized (this) {
+						completed++;
+						notifyAll();
+					}
+				}
+			}
+			catch (IOException e) {
+				synchronized (this) { error = e; notifyAll(); }
+			}
+			catch (InterruptedException e) {
+				synchronized (this) { error = new IOException("Flusher of cache " + CacheName + " interrupted", e); notifyAll(); }
+			}
+		}
+
+		synchronized void await(long handler) throws IOException, InterruptedException {
+			if (handler > requested) {
+				requested = handler;
+				notifyAll();
+			}
+			while (committed < handler) {
+				if (error != null) throw new IOException("Commit of cache " + CacheName + " failed", error);
+				if (!thread.isAlive()) throw new IOException("Cache " + CacheName + " is closed");
+				wait(interval);
+			}
+		}
+
+		// waits for a commit which started after the call, i.e. which commits everything written before
+		synchronized void sync() throws IOException, InterruptedException {
+			long target   = started + 1;
+			syncRequested = true;
+			notifyAll();
+			while (completed < target) {
+				if (error != null) throw new IOException("Commit of cache " + CacheName + " failed", error);
+				if (!thread.isAlive()) throw new IOException("Cache " + CacheName + " is closed");
+				wait(interval);
+			}
+		}
+
+		// commits once more and stops the thread
+		void stop() throws IOException {
+			synchronized (this) {
+				closing = true;
+				notifyAll();
+			}
+			boolean interrupted = false;
+			while (thread.isAlive()) {
+				try { thread.join(); }
+				catch (InterruptedException e) { interrupted = true; }
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+			synchronized (this) {
+				notifyAll();
+				if (error != null) throw error;
+			}
+		}
+
+		private void _commit() throws IOException {
+
+			// snapshot of the watermark
+			long     entries, data, compact, dead, dirty;
+			int      gen;
+			MapTable maps, previous;
+			synchronized (writeLock) {
+				entries   = NoOfEntryInIndex;
+				data      = dataWrittenSoFar;
+				compact   = compactWritten;
+				gen       = activeGen;
+				dead      = deadBytes[activeGen];
+				dirty     = dirtyFrom;
+				maps      = data_maps;
+				previous  = generations[committedGen];
+				dirtyFrom = Long.MAX_VALUE;
+			}
+			if (entries == committed && dirty == Long.MAX_VALUE && gen == committedGen && dead == committedDead)
+				return;
+
+			// data first, then what points to it
+			if (store != null) store.sync();
+			else {
+				if (gen != committedGen) {
+					// compact() started a new generation, the rest of the previous one goes first
+					if (previous != null) _force(previous, committedData, previous.size() * lBlockSize);
+					committedData = 0;
+				}
+				_force(maps, committedData, data);
+			}
+			if (compact_maps != null) _force(compact_maps, committedCompact, compact);
+			long first = Math.min(committed, dirty);     // rewritten entries are committed too
+			long from  = isCompactIndex ? first / COMPACT_FRAME_SIZE : first;
+			long to    = isCompactIndex ? (entries + COMPACT_FRAME_SIZE - 1) / COMPACT_FRAME_SIZE : entries;
+			_force(index_maps, from * INDEX_ENTRY_SIZE, to * INDEX_ENTRY_SIZE);
+
+			header_map.putLong(HEADER_FLAGS,   _flags(gen));
+			header_map.putLong(HEADER_DEAD,    dead);
+			header_map.putLong(HEADER_DATA,    data);
+			header_map.putLong(HEADER_COMPACT, compact);
+			Fences.storeFence();
+			header_map.putLong(HEADER_ENTRIES, entries);
+			header_map.force();
+
+			committedGen     = gen;
+			committedData    = data;
+			committedCompact = compact;
+			committedDead    = dead;
+			committed        = entries;
+		}
+
+		// forces the blocks of the table holding the bytes [from, to)
+		private void _force(MapTable maps, long from, long to) throws IOException {
+			for (long i = from / lBlockSize; i * lBlockSize < to; i++)
+				maps.force((int) i);
+		}
+	}
+
+	/*
+	 * The background thread compacting the cache whenever it is fragmented enough,
+	 * refer COMPACTION. A compaction interrupted earlier is resumed right away.
+	 */
+	private final class Compactor implements Runnable {
+
+		private final double     threshold;                  // fragmentation that triggers compaction
+		private final long       interval;                   // milliseconds between checks
+		private final Thread     thread;
+		private volatile boolean closing;
+		private volatile IOException error;                  // why the compactor stopped, if it failed
+
+		Compactor(double threshold, long interval) {
+			this.threshold = threshold;
+			this.interval  = Math.max(1, interval);
+			this.thread    = new Thread(this, "IndexCache-compactor-" + CacheName);
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		public void run() {
+			try {
+				while (!closing) {
+					synchronized (this) {
+						if (!closing) wait(interval);
+					}
+					boolean resume;
+					synchronized (writeLock) {
+						resume = OldDataCacheFile != null;
+					}
+					if (!closing && (resume || getFragmentation() >= threshold)) {
+						synchronized (compactLock) {
+							_compact();
+						}
+					}
+				}
+			}
+			catch (IOException e) {
+				error = e;
+			}
+			catch (InterruptedException e) {
+				// closing
+			}
+		}
+
+		// stops the thread, a running compaction stops after its current batch
+		void stop() throws IOException {
+			closing = true;
+			synchronized (this) {
+				notifyAll();
+			}
+			boolean interrupted = false;
+			while (thread.isAlive()) {
+				try { thread.join(); }
+				catch (InterruptedException e) { interrupted = true; }
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+			if (error != null) throw error;
+		}
+	}
+
+	/**
+	 * Returns the name of the cache, which can be passed to <tt>useExistingFile()</tt> to open it again.
+	 */
+	public String getCacheName() {
+		return CacheName;
+	}
+
+	// full name of the index cache file, side files of the cache are named after it
+	String getIndexCacheName() {
+		return IndexCacheName;
+	}
+
+	// size of each memory mapped block of the cache
+	long getBlockSize() {
+		return lBlockSize;
+	}
+
+	/**
+	 * Returns the number of items stored in the cache, i.e. the highest valid handler.
+	 * Items put by a concurrent writer are counted once their <tt>put()</tt> completes.
+	 */
+	public long getEntryCount() {
+		return publishedEntries;
+	}
+
+	/**
+	 * Returns the total number of data bytes stored in the data cache files so far,
+	 * including the dead bytes of updated and deleted items, refer <tt>getFragmentation()</tt>.
+	 */
+	public long getDataSize() {
+		return publishedData;
+	}
+
+	/*
+	 * Returns the data map to read from. In concurrent read mode this is the calling
+	 * thread's own duplicate of the map, so its position can be moved freely.
+	 */
+	private ByteBuffer _dataMap(MapTable maps, int gen, int mapNo) throws IOException {
+
+		if (!isConcurrent) return maps.get(mapNo);
+
+		ReaderViews    views  = _readerViews();
+		ByteBuffer[]   data   = views.data[gen];
+		ByteBuffer[]   source = views.source[gen];
+		if (mapNo >= data.length) {
+			data   = views.data[gen]   = Arrays.copyOf(data,   Math.max(mapNo + 1, 2 * data.length));
+			source = views.source[gen] = Arrays.copyOf(source, data.length);
+		}
+		ByteBuffer m = maps.get(mapNo);
+		if (source[mapNo] != m) {
+			source[mapNo] = m;
+			data[mapNo]   = m.duplicate();
+		}
+		return data[mapNo];
+	}
+
+	private ReaderViews _readerViews() {
+		ReaderViews views = readerViews.get();
+		if (views == null) {
+			views = new ReaderViews();
+			readerViews.set(views);
+		}
+		return views;
+	}
+
+	/**
+	 * Returns the ratio of <tt>get()</tt> calls that found the index entry in the
+	 * in-memory LRU cache, or 0 if the LRU cache is disabled or was never accessed.
+	 */
+	public double getLruHitRatio() {
+		if (lru == null) return 0;
+		long access = 0, hit = 0;
+		for (IndexEntryCache stripe : lru) {
+			synchronized (stripe) {
+				access += stripe.getAccessCount();
+				hit    += stripe.getHitCount();
+			}
+		}
+		return access == 0 ? 0 : (double) hit / access;
+	}
+
+	private Header ReadHeader(RandomAccessFile file) throws IOException {
+
+		byte[] headData = new byte[FIXED_HEADER_SIZE];
+
+		file.seek(0);
+		file.read(headData);
+		// file.close();
+
+		return new Header(headData);
+	}
+
+	private void writeHeader(RandomAccessFile file, byte[] bytes) throws IOException {
+
+		file.write(bytes);
+		// file.close();
+	}
+
+	/*
+	 * Helper methods 
+	 * ------------------------------------------------------------------
+	 */
+
+	public void close() throws IOException {
+		if (compactor != null) compactor.stop();
+		if (flusher != null) flusher.stop();   // commits what is left
+		for (MapTable maps : generations)
+			if (maps != null) maps.release();
+		index_maps.release();
+		if (compact_maps != null) compact_maps.release();
+		if (store != null) store.close();
+		if (flusher == null && !isReadOnly && (!storage.writesThrough() || store != null)) _checkpoint();   // after the blocks, refer STORAGE
+		_clean(header_map);
+		if (dedup != null) dedup.close();
+		if (metrics != null) metrics.close();
+		synchronized (asyncLock) {
+			for (AsynchronousFileChannel file : asyncFiles)
+				if (file != null) file.close();   // cold reads still running fail
+		}
+		if (CompactIndexFile != null) CompactIndexFile.close();
+        DataCacheFile.close();
+		if (OldDataCacheFile != null) OldDataCacheFile.close();
+		IndexCacheFile.close();
+	}
 
     private void _clean(MappedByteBuffer mapping) {
         if (mapping == null) return;
@@ -629,14 +2431,11 @@ public class IndexCache implements Closeable {
         if (cleaner != null) cleaner.clean();
     }
     
-	private void trace(String string) {
-		Log.trace(string, Log.VERBOSE);
-		
-	}
-
 	public static void main(String[] args) {
 		try {
-			IndexCache dd = new IndexCache.Builder("/Users/akash/", "/Users/akash/").build();
+			String dir = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+			if (!dir.endsWith(File.separator)) dir += File.separator;
+			IndexCache dd = new IndexCache.Builder(dir, dir).build();
 			
 			String s = "Joe! It's getting fucking hot here, let's pee";
 			dd.put(s.getBytes("UTF-16BE"));
@@ -0,0 +1,81 @@
+package intellip.flwr.io;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Follows an <tt>IndexCache</tt> written by another process, like a reader of an append-only
+ * journal. The cache is opened <tt>readOnly()</tt> in the reading process, and the tailer hands
+ * back the handlers of the items the writer appends, in order, as soon as they are visible in
+ * the header checkpoint of the cache - i.e. right after <tt>put()</tt> without durability, or
+ * once they are committed with <tt>Durability.PERIODIC</tt> or <tt>GROUP_COMMIT</tt>. The items
+ * are read through the cache as usual, e.g. with <tt>get()</tt> or <tt>getView()</tt>.</p>
+ *
+ * <p>Polling reads the entry count in the shared memory map of the header, refer
+ * <tt>IndexCache.follow()</tt>. It costs a memory read while nothing new is there, and the
+ * files are neither reopened nor scanned when something is. <tt>await()</tt> spins for a while
+ * before it parks the thread between polls, so a new item is usually noticed within
+ * microseconds while an idle tailer hardly uses the processor.</p>
+ *
+ * <p>A tailer is meant to be used by one thread, any number of tailers can follow the same
+ * cache.</p>
+ */
+public final class IndexCacheTailer {
+
+	private static final int  SPINS      = 1 << 10;          // polls before parking in await()
+	private static final long PARK_NANOS = 50000;             // 50 microseconds between polls after that
+
+	private final IndexCache cache;
+	private long next;                                        // handler handed back next
+	private long available;                                   // items known to be readable
+
+	/**
+	 * Creates a tailer handing back the items appended from now on.
+	 */
+	public IndexCacheTailer(IndexCache cache) throws IOException {
+		this(cache, cache.follow() + 1);
+	}
+
+	/**
+	 * Creates a tailer handing back the items from the given handler on, e.g. to resume
+	 * after the last item processed before a restart.
+	 */
+	public IndexCacheTailer(IndexCache cache, long fromHandler) {
+		if (fromHandler < 1) throw new IllegalArgumentException("Invalid handler: " + fromHandler);
+		this.cache = cache;
+		this.next  = fromHandler;
+	}
+
+	/**
+	 * Returns the handler of the next item if it is there already, without waiting.
+	 * @return handler of the next item, 0 if the writer has not appended it yet
+	 */
+	public long poll() throws IOException {
+		if (next > available) available = cache.follow();
+		return next <= available ? next++ : 0;
+	}
+
+	/**
+	 * Waits until the next item is there and returns its handler.
+	 * @return handler of the next item, 0 if it did not come within the timeout
+	 */
+	public long await(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (int spins = 0; ; spins++) {
+			long handler = poll();
+			if (handler != 0) return handler;
+			if (Thread.interrupted()) throw new InterruptedException();
+			if (System.nanoTime() - deadline >= 0) return 0;
+			if (spins >= SPINS) LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+
+	/**
+	 * Returns the handler the tailer hands back next.
+	 */
+	public long position() {
+		return next;
+	}
+}
@@ -0,0 +1,259 @@
+package intellip.flwr.io;
+
+import java.util.Arrays;
+
+/**
+ * <p>A least recently used cache of index entries, i.e. of <tt>handler -> (position, size)</tt>
+ * tuples. Unlike <tt>LruCache</tt> which is built on top of <tt>LinkedHashMap</tt>, this cache
+ * is made of primitive arrays only, so neither keys nor values are boxed and no object is
+ * created when an entry is looked up, added or evicted.</p>
+ *
+ * <p>The cache is sized in bytes. Every entry consumes <tt>ENTRY_SIZE</tt> bytes of heap,
+ * hence a cache of 128 MB holds a little more than 3 million entries. The arrays are not
+ * allocated in full up front, they double in size as entries are added until the
+ * maximum capacity is reached. After that the least recently used entry is evicted to make
+ * room for a new one.</p>
+ *
+ * <p>Internally the entries are chained in two ways - in a hash table for lookup by handler
+ * and in a doubly linked list ordered by access for eviction. Both the chains are arrays of
+ * integer indexes into the entry arrays, refer [ALGO4, pp. 142, 464].</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+final class IndexEntryCache {
+
+	// heap consumed by one entry: key, position and size (8 byte each), hash chain,
+	// previous and next in access order (4 byte each) and about 2 hash table slots
+	static final int         ENTRY_SIZE       = 44;
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	private static final int NIL              = -1;
+
+	private final int capacity;                      // maximum number of entries
+
+	// entry arrays, one element per entry
+	private long[]    keys;
+	private long[]    positions;
+	private long[]    sizes;
+	private int[]     chain;                         // next entry in the same hash bucket
+	private int[]     prev;                          // more recently used entry
+	private int[]     next;                          // less recently used entry
+
+	private int[]     table;                         // first entry of each hash bucket
+	private int       mask;
+
+	private int       count = 0;                     // entries in use
+	private int       head  = NIL;                   // most recently used entry
+	private int       tail  = NIL;                   // least recently used entry
+
+	private long      accessCount = 0;
+	private long      hitCount    = 0;
+
+	/**
+	 * Creates a cache that does not consume more than <tt>sizeInBytes</tt> of heap.
+	 * @param sizeInBytes int memory budget of the cache
+	 */
+	IndexEntryCache(int sizeInBytes) {
+		capacity = Math.max(1, sizeInBytes / ENTRY_SIZE);
+		allocate(Math.min(capacity, INITIAL_CAPACITY));
+	}
+
+	/**
+	 * Looks up the handler in the cache. In case of a hit, the position and size of the
+	 * entry are copied to <tt>dst[0]</tt> and <tt>dst[1]</tt> and the entry becomes the
+	 * most recently used one.
+	 * @param key long handler to look up
+	 * @param dst long[] array of at least 2 elements to receive the entry
+	 * @return <tt>true</tt> if the handler was found in the cache
+	 */
+	boolean get(long key, long[] dst) {
+
+		accessCount++;
+
+		int e = find(key);
+		if (e == NIL) return false;
+
+		hitCount++;
+		moveToHead(e);
+		dst[0] = positions[e];
+		dst[1] = sizes[e];
+		return true;
+	}
+
+	/**
+	 * Adds or replaces the entry of a handler, evicting the least recently used
+	 * entry if the cache is full.
+	 */
+	void put(long key, long position, long size) {
+
+		int e = find(key);
+		if (e == NIL) {
+			if (count == capacity) {
+				// reuse the least recently used entry
+				e = tail;
+				unlink(e);
+				unchain(e);
+			}
+			else {
+				if (count == keys.length) allocate(Math.min(capacity, count << 1));
+				e = count++;
+			}
+			keys[e]  = key;
+			int b    = bucket(key);
+			chain[e] = table[b];
+			table[b] = e;
+		}
+		else unlink(e);
+
+		positions[e] = position;
+		sizes[e]     = size;
+		linkAtHead(e);
+	}
+
+	/**
+	 * Removes the entry of a handler from the cache, if it is there.
+	 */
+	void remove(long key) {
+
+		int e = find(key);
+		if (e == NIL) return;
+
+		unlink(e);
+		unchain(e);
+
+		// keep the entries dense by moving the last entry into the hole
+		int last = --count;
+		if (e != last) {
+			keys[e]      = keys[last];
+			positions[e] = positions[last];
+			sizes[e]     = sizes[last];
+			chain[e]     = chain[last];
+			prev[e]      = prev[last];
+			next[e]      = next[last];
+
+			if (prev[e] != NIL) next[prev[e]] = e; else head = e;
+			if (next[e] != NIL) prev[next[e]] = e; else tail = e;
+
+			int b = bucket(keys[e]);
+			if (table[b] == last) table[b] = e;
+			else {
+				int p = table[b];
+				while (chain[p] != last) p = chain[p];
+				chain[p] = e;
+			}
+		}
+	}
+
+	/**
+	 * Removes all the entries. The statistics are retained.
+	 */
+	void clear() {
+		Arrays.fill(table, NIL);
+		count = 0;
+		head  = NIL;
+		tail  = NIL;
+	}
+
+	/**
+	 * Returns the number of entries currently in the cache.
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the maximum number of entries the cache can hold.
+	 */
+	int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of times <tt>get()</tt> method was invoked.
+	 */
+	long getAccessCount() {
+		return accessCount;
+	}
+
+	/**
+	 * Returns the number of times <tt>get()</tt> found the handler in the cache.
+	 */
+	long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the ratio of hits to accesses, or 0 if the cache was never accessed.
+	 */
+	double getHitRatio() {
+		return accessCount == 0 ? 0 : (double) hitCount / accessCount;
+	}
+
+	/*
+	 * HELPER Methods
+	 * ----------------------------------------------------------
+	 */
+	private int find(long key) {
+		int e = table[bucket(key)];
+		while (e != NIL && keys[e] != key) e = chain[e];
+		return e;
+	}
+
+	private int bucket(long key) {
+		// fibonacci hashing, keeps sequential handlers apart
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void moveToHead(int e) {
+		if (e == head) return;
+		unlink(e);
+		linkAtHead(e);
+	}
+
+	private void linkAtHead(int e) {
+		prev[e] = NIL;
+		next[e] = head;
+		if (head != NIL) prev[head] = e;
+		head = e;
+		if (tail == NIL) tail = e;
+	}
+
+	private void unlink(int e) {
+		if (prev[e] != NIL) next[prev[e]] = next[e]; else head = next[e];
+		if (next[e] != NIL) prev[next[e]] = prev[e]; else tail = prev[e];
+	}
+
+	private void unchain(int e) {
+		int b = bucket(keys[e]);
+		if (table[b] == e) table[b] = chain[e];
+		else {
+			int p = table[b];
+			while (chain[p] != e) p = chain[p];
+			chain[p] = chain[e];
+		}
+	}
+
+	/*
+	 * Grows the entry arrays to hold n entries and rebuilds the hash table
+	 * with about 2 buckets per entry.
+	 */
+	private void allocate(int n) {
+
+		keys      = keys      == null ? new long[n] : Arrays.copyOf(keys,      n);
+		positions = positions == null ? new long[n] : Arrays.copyOf(positions, n);
+		sizes     = sizes     == null ? new long[n] : Arrays.copyOf(sizes,     n);
+		chain     = chain     == null ? new int[n]  : Arrays.copyOf(chain,     n);
+		prev      = prev      == null ? new int[n]  : Arrays.copyOf(prev,      n);
+		next      = next      == null ? new int[n]  : Arrays.copyOf(next,      n);
+
+		int buckets = Integer.highestOneBit(Math.max(1, n)) << 1;
+		table = new int[buckets];
+		mask  = buckets - 1;
+		Arrays.fill(table, NIL);
+		for (int e = 0; e < count; e++) {
+			int b    = bucket(keys[e]);
+			chain[e] = table[b];
+			table[b] = e;
+		}
+	}
+}
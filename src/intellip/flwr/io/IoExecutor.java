@@ -0,0 +1,64 @@
+package intellip.flwr.io;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>The executor the asynchronous methods of the caches run on unless they are given one,
+ * refer <tt>IndexCache.getAsync()</tt>. On a JVM with virtual threads every task gets a
+ * virtual thread of its own, otherwise the tasks share a pool of daemon threads, a few per
+ * processor since the tasks mostly wait for the disk. The executor is created the first
+ * time it is used, through the lazy initialization holder class idiom [JCIP, pp. 348],
+ * and lives as long as the JVM.</p>
+ */
+final class IoExecutor {
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private IoExecutor() {
+		throw new AssertionError();
+	}
+
+	private static final class Holder {
+		static final Executor EXECUTOR = _create();
+	}
+
+	/**
+	 * Returns the shared I/O executor.
+	 */
+	static Executor get() {
+		return Holder.EXECUTOR;
+	}
+
+	private static Executor _create() {
+
+		// Executors.newVirtualThreadPerTaskExecutor() exists from Java 21 on, the build targets Java 8
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			// no virtual threads, fall through to the pool
+		}
+
+		int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "flwr-io-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+}
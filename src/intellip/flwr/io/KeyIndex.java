@@ -0,0 +1,491 @@
+package intellip.flwr.io;
+
+import intellip.flwr.util.Base;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>A persistent hash index from keys, i.e. arrays of bytes, to the handlers of an
+ * <tt>IndexCache</tt>. It lets items be found by key without keeping a map of all the keys
+ * in the heap. The index lives in memory mapped files beside the index cache file, so it
+ * survives a restart and reopening it costs nothing.</p>
+ *
+ * <p>The index is a hash table with open addressing and linear probing [ALGO4, pp. 470].
+ * Every slot of the table is 32 bytes long:</p>
+ * <pre>
+ *     [ hash    : 8 byte ]  64 bit hash of the key, 0 for an empty slot
+ *     [ keyRef  : 8 byte ]  where the key starts in the key heap
+ *     [ keyLen  : 4 byte ]
+ *     [ state   : 4 byte ]  LIVE or REMOVED
+ *     [ handler : 8 byte ]
+ * </pre>
+ * <p>The keys themselves are appended to a key heap (the <tt>.key</tt> file), whose header
+ * also tells which table is the active one. Removed entries leave a REMOVED slot behind so
+ * that the probe sequences running through them stay intact.</p>
+ *
+ * <p>When the active table is 3/4 full, a table of twice the size (or of the same size, if
+ * most of the used slots are REMOVED) is created in the other <tt>.hix</tt> file and becomes
+ * the active one. The entries of the old table are not moved all at once - every
+ * <tt>put()</tt> and <tt>remove()</tt> moves <tt>REHASH_STEP</tt> slots of it, so no single call
+ * pays for the whole rehash. Until the old table is drained, keys are looked up in both.</p>
+ *
+ * <p>Optionally a <tt>BloomFilter</tt> of the keys is kept in a <tt>.blm</tt> file. Most
+ * lookups of keys that are not in the index then return without touching the tables or the
+ * key heap at all, which matters when most lookups miss.</p>
+ *
+ * <p>Lookups hash and compare the key in place and do not create any object. All public
+ * methods are synchronized.</p>
+ */
+public final class KeyIndex implements Closeable {
+
+	private static final long MAGIC        = 0x464C575248495800L | 1;   // "FLWRHIX", version 1
+	private static final int  HEADER_SIZE  = 64;
+	private static final int  SLOT_SIZE    = 32;
+	private static final int  MIN_CAPACITY = 1 << 10;
+	private static final int  REHASH_STEP  = 16;    // slots of the old table moved by each put() or remove()
+
+	// header of the key heap file
+	private static final int  H_ACTIVE     = 8;     // active table, 0 or 1
+	private static final int  H_CURSOR     = 16;    // next slot of the old table to move, -1 if none
+	private static final int  H_KEYS       = 24;    // bytes in the key heap
+	private static final int  H_SIZE       = 32;    // live entries
+
+	// header of a table file
+	private static final int  T_CAPACITY   = 8;     // slots
+	private static final int  T_USED       = 16;    // slots which are not empty
+
+	// fields of a slot
+	private static final int  S_HASH       = 0;
+	private static final int  S_KEY        = 8;
+	private static final int  S_LEN        = 16;
+	private static final int  S_STATE      = 20;
+	private static final int  S_HANDLER    = 24;
+	private static final int  LIVE         = 1;
+	private static final int  REMOVED      = 2;
+
+	private final String           prefix;          // name of the index files without extension
+	private final long             blockSize;       // size of each memory mapped block
+	private final RandomAccessFile keyFile;
+	private final MappedByteBuffer header;          // map of the header of the key heap file
+	private final MapTable         keys;            // maps of the key heap
+	private final Table[]          tables = new Table[2];
+	private final BloomFilter      filter;          // null if the index has no filter
+
+	private int  active;                            // table new entries go to
+	private long cursor;                            // next slot of the old table to move, -1 if none
+	private long keyBytes;                          // bytes in the key heap
+	private long size;                              // live entries in both tables
+
+	private long filterMisses;                      // lookups the filter answered, i.e. keys not in the index
+	private long filterHits;                        // lookups the filter passed on to the tables
+	private long filterFalsePositives;              // lookups the filter passed on that did not find the key
+
+	private static final class Table {
+		private RandomAccessFile file;
+		private MapTable         maps;
+		private MappedByteBuffer header;
+		private long             capacity;          // slots, a power of 2
+		private long             used;              // slots which are not empty
+	}
+
+	/**
+	 * Opens the key index of the cache, or creates an empty one if the cache has none yet.
+	 * The Bloom filter of the index is used if it has one.
+	 * @param cache IndexCache the index belongs to, the index files are kept beside its index cache file
+	 */
+	public KeyIndex(IndexCache cache) throws IOException {
+		this(cache, 0, 0);
+	}
+
+	/**
+	 * Opens the key index of the cache, or creates an empty one, with a Bloom filter of its keys.
+	 * The filter is sized for the expected number of keys and the false positive rate, unless
+	 * the index has a filter already. A filter added to an existing index is filled with its keys.
+	 * @param expectedKeys      number of keys the filter is sized for, 0 for no filter
+	 * @param falsePositiveRate share of the lookups of missing keys the filter lets through, e.g. 0.01
+	 */
+	public KeyIndex(IndexCache cache, long expectedKeys, double falsePositiveRate) throws IOException {
+		this(_prefix(cache.getIndexCacheName()), cache.getBlockSize(), expectedKeys, falsePositiveRate);
+	}
+
+	// index in the files named prefix + "key", prefix + "hix.0" etc.
+	KeyIndex(String prefix, long blockSize, long expectedKeys, double falsePositiveRate) throws IOException {
+
+		this.prefix    = prefix;
+		this.blockSize = blockSize;
+
+		boolean exists = Base.isValidPath(prefix + "key");
+		keyFile = new RandomAccessFile(prefix + "key", "rw");
+		header  = keyFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		keys    = new MapTable(keyFile.getChannel(), FileChannel.MapMode.READ_WRITE, HEADER_SIZE, blockSize, 0);
+
+		if (exists) {
+			if (header.getLong(0) != MAGIC)
+				throw new IOException("Key index " + prefix + "key has an unsupported layout");
+			active   = (int) header.getLong(H_ACTIVE);
+			cursor   = header.getLong(H_CURSOR);
+			keyBytes = header.getLong(H_KEYS);
+			size     = header.getLong(H_SIZE);
+			keys.addUnmapped((int) ((keyFile.length() - HEADER_SIZE) / blockSize));
+
+			tables[active] = _openTable(active);
+			if (cursor >= 0) tables[1 - active] = _openTable(1 - active);
+		}
+		else {
+			header.putLong(0, MAGIC);
+			long capacity = Long.highestOneBit(Math.max(MIN_CAPACITY, blockSize / SLOT_SIZE) - 1) << 1;
+			active = 0;
+			cursor = -1;
+			tables[active] = _createTable(active, capacity);
+			_writeHeader();
+		}
+
+		boolean filled = BloomFilter.exists(prefix + "blm");
+		if (filled || expectedKeys > 0) {
+			filter = new BloomFilter(prefix + "blm", blockSize, expectedKeys, falsePositiveRate);
+			if (!filled) _fillFilter();
+		}
+		else filter = null;
+	}
+
+	/**
+	 * Returns the handler stored against the key, or 0 if there is none. No object is created.
+	 */
+	public synchronized long get(byte[] key) throws IOException {
+		return get(key, 0, key.length);
+	}
+
+	/**
+	 * Same as <tt>get(byte[])</tt> for the key made of <tt>len</tt> bytes of <tt>key</tt> starting at <tt>off</tt>.
+	 */
+	public synchronized long get(byte[] key, int off, int len) throws IOException {
+
+		long hash = _hash(key, off, len);
+		if (filter != null) {
+			if (!filter.mightContain(hash)) {
+				filterMisses++;
+				return 0;
+			}
+			filterHits++;
+		}
+
+		long slot = _find(tables[active], hash, key, off, len);
+		if (slot >= 0) return _map(tables[active], slot).getLong(_offset(slot) + S_HANDLER);
+
+		if (cursor >= 0) {
+			slot = _find(tables[1 - active], hash, key, off, len);
+			if (slot >= 0) return _map(tables[1 - active], slot).getLong(_offset(slot) + S_HANDLER);
+		}
+		if (filter != null) filterFalsePositives++;
+		return 0;
+	}
+
+	/**
+	 * Stores the handler against the key, replacing the handler stored against it before.
+	 * @param handler long handler of an <tt>IndexCache</tt> (or of a <tt>ShardedIndexCache</tt>), not 0
+	 */
+	public synchronized void put(byte[] key, long handler) throws IOException {
+		put(key, 0, key.length, handler);
+	}
+
+	/**
+	 * Same as <tt>put(byte[], long)</tt> for the key made of <tt>len</tt> bytes of <tt>key</tt> starting at <tt>off</tt>.
+	 */
+	public synchronized void put(byte[] key, int off, int len, long handler) throws IOException {
+
+		if (handler == 0) throw new IllegalArgumentException("Invalid handler: " + handler);
+		_rehashStep();
+
+		long  hash = _hash(key, off, len);
+		Table t    = tables[active];
+		long  slot = _find(t, hash, key, off, len);
+		if (slot >= 0) {
+			_map(t, slot).putLong(_offset(slot) + S_HANDLER, handler);
+			return;
+		}
+
+		// the key may not be moved from the old table yet - move it now, keeping its key bytes
+		long keyRef = -1;
+		if (cursor >= 0) {
+			Table old = tables[1 - active];
+			slot = _find(old, hash, key, off, len);
+			if (slot >= 0) {
+				ByteBuffer m = _map(old, slot);
+				keyRef = m.getLong(_offset(slot) + S_KEY);
+				m.putInt(_offset(slot) + S_STATE, REMOVED);
+				size--;
+			}
+		}
+
+		if ((t.used + 1) * 4 > t.capacity * 3) {
+			_grow();
+			t = tables[active];
+		}
+		if (keyRef < 0) keyRef = _appendKey(key, off, len);
+		if (filter != null) filter.add(hash);
+		_insert(t, hash, keyRef, len, handler);
+		size++;
+		_writeHeader();
+	}
+
+	/**
+	 * Removes the key from the index and returns the handler stored against it, or 0 if there was none.
+	 */
+	public synchronized long remove(byte[] key) throws IOException {
+
+		_rehashStep();
+
+		long hash = _hash(key, 0, key.length);
+		for (int k = 0; k < 2; k++) {
+			Table t = k == 0 ? tables[active] : cursor >= 0 ? tables[1 - active] : null;
+			if (t == null) break;
+
+			long slot = _find(t, hash, key, 0, key.length);
+			if (slot >= 0) {
+				ByteBuffer m = _map(t, slot);
+				m.putInt(_offset(slot) + S_STATE, REMOVED);
+				size--;
+				_writeHeader();
+				return m.getLong(_offset(slot) + S_HANDLER);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the number of keys in the index.
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of slots of the active table.
+	 */
+	public synchronized long capacity() {
+		return tables[active].capacity;
+	}
+
+	/**
+	 * Returns the number of lookups the Bloom filter answered as definite misses.
+	 */
+	public synchronized long getFilterMisses() {
+		return filterMisses;
+	}
+
+	/**
+	 * Returns the number of lookups the Bloom filter let through to the tables.
+	 */
+	public synchronized long getFilterHits() {
+		return filterHits;
+	}
+
+	/**
+	 * Returns the number of lookups the Bloom filter let through that did not find their key.
+	 */
+	public synchronized long getFilterFalsePositives() {
+		return filterFalsePositives;
+	}
+
+	public synchronized void close() throws IOException {
+		if (filter != null) filter.close();
+		for (Table t : tables)
+			if (t != null) _closeTable(t);
+		keys.release();
+		BlockStorage.MMAP.free(header);
+		keyFile.close();
+	}
+
+	/*
+	 * HELPER Methods
+	 * ----------------------------------------------------------
+	 */
+
+	// index cache file name without the "idx" extension
+	private static String _prefix(String indexCacheName) {
+		return indexCacheName.substring(0, indexCacheName.length() - "idx".length());
+	}
+
+	// FNV-1a, with the bits spread by the finalizer of MurmurHash3 since the low bits pick the slot
+	private static long _hash(byte[] key, int off, int len) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = off; i < off + len; i++) {
+			h ^= key[i] & 0xFF;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;                     // 0 marks an empty slot
+	}
+
+	// returns the slot of the live entry of the key in the table, or -1
+	private long _find(Table t, long hash, byte[] key, int off, int len) throws IOException {
+		long mask = t.capacity - 1;
+		for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+			ByteBuffer m = _map(t, slot);
+			int o = _offset(slot);
+			long h = m.getLong(o + S_HASH);
+			if (h == 0) return -1;
+			if (h == hash && m.getInt(o + S_STATE) == LIVE && m.getInt(o + S_LEN) == len
+					&& _keyEquals(m.getLong(o + S_KEY), key, off, len))
+				return slot;
+		}
+	}
+
+	// adds an entry to the first empty or removed slot of its probe sequence
+	private void _insert(Table t, long hash, long keyRef, int len, long handler) throws IOException {
+		long mask = t.capacity - 1;
+		for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+			ByteBuffer m = _map(t, slot);
+			int o = _offset(slot);
+			long h = m.getLong(o + S_HASH);
+			if (h == 0 || m.getInt(o + S_STATE) == REMOVED) {
+				if (h == 0) t.header.putLong(T_USED, ++t.used);
+				m.putLong(o + S_HASH,    hash);
+				m.putLong(o + S_KEY,     keyRef);
+				m.putInt (o + S_LEN,     len);
+				m.putInt (o + S_STATE,   LIVE);
+				m.putLong(o + S_HANDLER, handler);
+				return;
+			}
+		}
+	}
+
+	private boolean _keyEquals(long keyRef, byte[] key, int off, int len) throws IOException {
+		for (int i = 0; i < len; ) {
+			ByteBuffer m = keys.get((int) (keyRef / blockSize));
+			int o = (int) (keyRef % blockSize);
+			int n = (int) Math.min(len - i, blockSize - o);
+			for (int j = 0; j < n; j++)
+				if (m.get(o + j) != key[off + i + j]) return false;
+			i      += n;
+			keyRef += n;
+		}
+		return true;
+	}
+
+	private long _appendKey(byte[] key, int off, int len) throws IOException {
+		long keyRef = keyBytes;
+		while (keys.size() * blockSize < keyBytes + len) keys.add();
+		for (int i = 0; i < len; ) {
+			ByteBuffer m = keys.get((int) (keyBytes / blockSize)).duplicate();
+			int o = (int) (keyBytes % blockSize);
+			int n = (int) Math.min(len - i, blockSize - o);
+			m.position(o);
+			m.put(key, off + i, n);
+			i        += n;
+			keyBytes += n;
+		}
+		return keyRef;
+	}
+
+	// adds the keys of the index to a new filter, from the hashes kept in the slots
+	private void _fillFilter() throws IOException {
+		for (Table t : tables) {
+			if (t == null) continue;
+			for (long slot = 0; slot < t.capacity; slot++) {
+				ByteBuffer m = _map(t, slot);
+				int o = _offset(slot);
+				if (m.getLong(o + S_HASH) != 0 && m.getInt(o + S_STATE) == LIVE) filter.add(m.getLong(o + S_HASH));
+			}
+		}
+	}
+
+	// starts a new active table, the current one is drained into it by _rehashStep()
+	private void _grow() throws IOException {
+
+		while (cursor >= 0) _rehashStep();           // at most two tables at a time
+
+		Table old      = tables[active];
+		long  capacity = (size + 1) * 2 > old.capacity ? old.capacity << 1 : old.capacity;
+		active         = 1 - active;
+		tables[active] = _createTable(active, capacity);
+		cursor         = 0;
+		_writeHeader();
+	}
+
+	// moves the next REHASH_STEP slots of the old table to the active one
+	private void _rehashStep() throws IOException {
+
+		if (cursor < 0) return;
+
+		Table old = tables[1 - active];
+		for (int k = 0; k < REHASH_STEP && cursor < old.capacity; k++, cursor++) {
+			ByteBuffer m = _map(old, cursor);
+			int o = _offset(cursor);
+			if (m.getLong(o + S_HASH) != 0 && m.getInt(o + S_STATE) == LIVE) {
+				_insert(tables[active], m.getLong(o + S_HASH), m.getLong(o + S_KEY), m.getInt(o + S_LEN), m.getLong(o + S_HANDLER));
+				m.putInt(o + S_STATE, REMOVED);
+			}
+		}
+
+		if (cursor == old.capacity) {
+			_closeTable(old);
+			new File(_tableName(1 - active)).delete();
+			tables[1 - active] = null;
+			cursor = -1;
+		}
+		_writeHeader();
+	}
+
+	private Table _createTable(int no, long capacity) throws IOException {
+		Table t    = new Table();
+		t.file     = new RandomAccessFile(_tableName(no), "rw");
+		t.file.setLength(0);
+		t.file.setLength(HEADER_SIZE + capacity * SLOT_SIZE);   // empty slots are all zero
+		t.header   = t.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		t.header.putLong(0,          MAGIC);
+		t.header.putLong(T_CAPACITY, capacity);
+		t.header.putLong(T_USED,     0);
+		t.capacity = capacity;
+		t.maps     = new MapTable(t.file.getChannel(), FileChannel.MapMode.READ_WRITE, HEADER_SIZE, blockSize, 0);
+		t.maps.addUnmapped((int) ((capacity * SLOT_SIZE + blockSize - 1) / blockSize));
+		return t;
+	}
+
+	// unmaps the table before closing its file, so the file can be deleted right away
+	private void _closeTable(Table t) throws IOException {
+		t.maps.release();
+		BlockStorage.MMAP.free(t.header);
+		t.file.close();
+	}
+
+	private Table _openTable(int no) throws IOException {
+		Table t    = new Table();
+		t.file     = new RandomAccessFile(_tableName(no), "rw");
+		t.header   = t.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		if (t.header.getLong(0) != MAGIC)
+			throw new IOException("Key index " + _tableName(no) + " has an unsupported layout");
+		t.capacity = t.header.getLong(T_CAPACITY);
+		t.used     = t.header.getLong(T_USED);
+		t.maps     = new MapTable(t.file.getChannel(), FileChannel.MapMode.READ_WRITE, HEADER_SIZE, blockSize, 0);
+		t.maps.addUnmapped((int) ((t.capacity * SLOT_SIZE + blockSize - 1) / blockSize));
+		return t;
+	}
+
+	private void _writeHeader() {
+		header.putLong(H_ACTIVE, active);
+		header.putLong(H_CURSOR, cursor);
+		header.putLong(H_KEYS,   keyBytes);
+		header.putLong(H_SIZE,   size);
+	}
+
+	private String _tableName(int no) {
+		return prefix + "hix." + no;
+	}
+
+	private ByteBuffer _map(Table t, long slot) throws IOException {
+		return t.maps.get((int) (slot * SLOT_SIZE / blockSize));
+	}
+
+	private int _offset(long slot) {
+		return (int) (slot * SLOT_SIZE % blockSize);
+	}
+}
@@ -0,0 +1,103 @@
+package intellip.flwr.io;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A histogram of latencies in nanoseconds which can be recorded into from any number of
+ * threads without locking and without allocating. A latency falls into one of 4 linear
+ * sub-buckets of its power of 2, i.e. quantiles are reported with at most 25% error over
+ * the whole range of a long.</p>
+ *
+ * <p>The buckets are kept in stripes, one per thread modulo the number of stripes, so
+ * threads recording at the same time rarely write to the same cache line. Every stripe
+ * also keeps the sum and the maximum of its latencies. Reading sums up the stripes, the
+ * result may be off by the latencies recorded meanwhile.</p>
+ */
+final class LatencyHistogram {
+
+	private static final int SUB_BITS = 2;
+	private static final int SUB      = 1 << SUB_BITS;       // linear sub-buckets of a power of 2
+	private static final int BUCKETS  = 64 << SUB_BITS;
+	private static final int SUM      = BUCKETS;             // slots of a stripe after the buckets
+	private static final int MAX      = BUCKETS + 1;
+	private static final int SLOTS    = BUCKETS + 2;
+
+	private final int             mask;                      // stripes - 1
+	private final AtomicLongArray slots;
+
+	LatencyHistogram() {
+		int stripes = Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+		mask  = stripes - 1;
+		slots = new AtomicLongArray(stripes * SLOTS);
+	}
+
+	/**
+	 * Records a latency.
+	 */
+	void record(long nanos) {
+		int s = (int) (Thread.currentThread().getId() & mask) * SLOTS;
+		slots.incrementAndGet(s + _bucket(nanos));
+		slots.addAndGet(s + SUM, nanos);
+		for (long m = slots.get(s + MAX); nanos > m; m = slots.get(s + MAX))
+			if (slots.compareAndSet(s + MAX, m, nanos)) break;
+	}
+
+	/**
+	 * Returns the number of latencies recorded.
+	 */
+	long count() {
+		long n = 0;
+		for (int s = 0; s <= mask; s++)
+			for (int b = 0; b < BUCKETS; b++) n += slots.get(s * SLOTS + b);
+		return n;
+	}
+
+	/**
+	 * Returns the mean latency, 0 if none was recorded.
+	 */
+	double mean() {
+		long sum = 0;
+		for (int s = 0; s <= mask; s++) sum += slots.get(s * SLOTS + SUM);
+		long n = count();
+		return n == 0 ? 0 : (double) sum / n;
+	}
+
+	long max() {
+		long max = 0;
+		for (int s = 0; s <= mask; s++) max = Math.max(max, slots.get(s * SLOTS + MAX));
+		return max;
+	}
+
+	/**
+	 * Returns the latency at the quantile (0 - 1), i.e. the upper bound of the bucket it falls
+	 * into, 0 if none was recorded.
+	 */
+	long quantile(double q) {
+		long[] counts = new long[BUCKETS];
+		long   n      = 0;
+		for (int s = 0; s <= mask; s++)
+			for (int b = 0; b < BUCKETS; b++) {
+				counts[b] += slots.get(s * SLOTS + b);
+				n         += slots.get(s * SLOTS + b);
+			}
+		long rank = Math.max(1, (long) Math.ceil(q * n));
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++)
+			if ((seen += counts[b]) >= rank) return Math.min(_upper(b), max());
+		return 0;
+	}
+
+	// values below SUB have a bucket each, the others one of SUB per power of 2
+	private static int _bucket(long v) {
+		if (v < SUB) return (int) Math.max(v, 0);
+		int exp = 63 - Long.numberOfLeadingZeros(v);
+		return ((exp - SUB_BITS + 1) << SUB_BITS) | (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+	}
+
+	private static long _upper(int b) {
+		if (b < SUB) return b;
+		int exp = (b >>> SUB_BITS) + SUB_BITS - 1;
+		if (exp == 62 && (b & (SUB - 1)) == SUB - 1) return Long.MAX_VALUE;
+		return ((long) (SUB + (b & (SUB - 1)) + 1) << (exp - SUB_BITS)) - 1;
+	}
+}
@@ -4,6 +4,7 @@ import java.io.BufferedInputStream;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.function.DoubleSupplier;
 
 
 @SuppressWarnings("serial")
@@ -12,6 +13,7 @@ public class LruCache<Key, Value> extends LinkedHashMap<Key, Value> {
 	private final int capacity;
 	private long accessCount = 0;
 	private long hitCount    = 0;
+	private transient CacheMetrics metrics;   // registered over JMX, null while they are not enabled
 	
 	public LruCache(int capacity)
 	{
@@ -32,6 +34,8 @@ public class LruCache<Key, Value> extends LinkedHashMap<Key, Value> {
 	 */
 	public Value get(Object key) {
 		
+		long start = metrics != null ? System.nanoTime() : 0;
+
 		// increment the accessCount as new access requests are made
 		accessCount++;
 		
@@ -39,7 +43,9 @@ public class LruCache<Key, Value> extends LinkedHashMap<Key, Value> {
 		if(containsKey(key)) hitCount++;
 		
 		// return the value against the key. If the key is not present, value will be null
-		return super.get(key);
+		Value value = super.get(key);
+		if (metrics != null && start != 0) metrics.recordGet(System.nanoTime() - start, 0, 0);
+		return value;
 	}
 	
 	/**
@@ -83,6 +89,35 @@ public class LruCache<Key, Value> extends LinkedHashMap<Key, Value> {
 		return hitCount;
 	}
 
+	/**
+	 * Turns the metrics of the cache on and registers them over JMX under the given name,
+	 * refer <tt>CacheMetrics</tt>. Their hit ratio is the one of <tt>get()</tt>.
+	 */
+	public void enableMetrics(String name) {
+		if (metrics != null) return;
+		metrics = CacheMetrics.register("LruCache", name, new DoubleSupplier() {
+			public double getAsDouble() {
+				return accessCount == 0 ? 0 : (double) hitCount / accessCount;
+			}
+		});
+	}
+
+	/**
+	 * Turns the metrics of the cache off and unregisters them.
+	 */
+	public void disableMetrics() {
+		if (metrics == null) return;
+		metrics.close();
+		metrics = null;
+	}
+
+	/**
+	 * Returns the metrics of the cache, <tt>null</tt> if they are off.
+	 */
+	public CacheMetrics getMetrics() {
+		return metrics;
+	}
+
 	/*
 	 * A SMALL TEST CLIENT
 	 */
@@ -0,0 +1,260 @@
+package intellip.flwr.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>A growable table of the memory maps of one cache file, where map <tt>i</tt> covers
+ * the <tt>blockSize</tt> bytes of the file starting at <tt>base + i * blockSize</tt>, the
+ * last one only up to the length of the file if the table is given one. With a
+ * <tt>BlockStorage</tt> other than <tt>MMAP</tt> the "maps" are direct buffers holding a copy
+ * of the blocks, which are written back by <tt>force()</tt> and <tt>release()</tt>.</p>
+ *
+ * <p>A block is not necessarily mapped when it is added to the table. Blocks of an existing
+ * file are registered with <tt>addUnmapped()</tt> and are only mapped the first time
+ * <tt>get()</tt> touches them, so opening a large file costs nothing. Optionally the table
+ * keeps at most <tt>maxMapped</tt> blocks mapped at a time. Beyond that, a block which was
+ * not touched lately is dropped from the table and mapped again if it is touched later. The
+ * blocks are picked by the CLOCK (second chance) algorithm: <tt>get()</tt> sets a reference
+ * bit of the block, and a hand going round the mapped blocks clears the bits it passes and
+ * drops the first block whose bit is clear, i.e. one not touched since the hand passed it
+ * last time. A dropped map is not unmapped explicitly since other threads may still be
+ * reading it, it is unmapped by the garbage collector once nobody refers to it. Blocks of a
+ * writable table whose storage does not write through are never dropped, since their writes
+ * would be lost, unless the table writes back: its owner serializes all access, keeps no
+ * block across calls and takes the blocks it writes by <tt>getForWrite()</tt>, and the table
+ * stores a block written since it was loaded before dropping it and frees it right away.</p>
+ *
+ * <p>Blocks are only added by one thread, the writer, but the table can be read by any number
+ * of threads while it grows. The slots are kept in an <tt>AtomicReferenceArray</tt> which is
+ * replaced by a bigger copy when it is full, and both the array and the number of blocks are
+ * volatile. A block added by the writer is therefore visible to every thread that reads
+ * <tt>size()</tt> afterwards, or that learns about it through any other volatile variable
+ * written by the writer after adding it.</p>
+ */
+final class MapTable {
+
+	private final FileChannel         channel;
+	private final FileChannel.MapMode mode;
+	private final long                base;         // file offset of block 0
+	private final long                blockSize;
+	private final long                length;       // file offset the blocks end at, Long.MAX_VALUE for none
+	private final int                 maxMapped;    // maximum blocks mapped at a time, 0 for no limit
+	private final BlockStorage        storage;
+	private final CacheMetrics        metrics;      // counts the blocks mapped, null for none
+	private final boolean             writeBack;    // dropped blocks are stored and freed, refer getForWrite()
+
+	private volatile AtomicReferenceArray<ByteBuffer> maps = new AtomicReferenceArray<ByteBuffer>(16);
+	private volatile int count = 0;
+
+	// reference bit of every block, null if nothing is dropped. get() sets the bits without
+	// locking, a bit set in an array replaced meanwhile is lost, which only costs its block
+	// its second chance
+	private volatile byte[] referenced;
+
+	// whether every block was written since it was loaded, null unless dropped blocks are written back
+	private boolean[] dirty;
+
+	// the mapped blocks, the hand goes round them once maxMapped is reached
+	private final int[] clock;
+	private int         hand   = 0;
+	private int         mapped = 0;
+
+	MapTable(FileChannel channel, FileChannel.MapMode mode, long base, long blockSize, int maxMapped) {
+		this(channel, mode, base, blockSize, maxMapped, BlockStorage.MMAP);
+	}
+
+	MapTable(FileChannel channel, FileChannel.MapMode mode, long base, long blockSize, int maxMapped, BlockStorage storage) {
+		this(channel, mode, base, blockSize, maxMapped, storage, null);
+	}
+
+	MapTable(FileChannel channel, FileChannel.MapMode mode, long base, long blockSize, int maxMapped, BlockStorage storage, CacheMetrics metrics) {
+		this(channel, mode, base, blockSize, Long.MAX_VALUE, maxMapped, storage, metrics, false);
+	}
+
+	// a table of a file of a fixed length, the last block is cut at the end of the file. If it
+	// writes back, the blocks of a storage which does not write through are dropped too
+	MapTable(FileChannel channel, FileChannel.MapMode mode, long base, long blockSize, long length, int maxMapped, BlockStorage storage, CacheMetrics metrics, boolean writeBack) {
+		boolean drops  = storage.writesThrough() || mode == FileChannel.MapMode.READ_ONLY || writeBack;
+		this.channel    = channel;
+		this.mode       = mode;
+		this.base       = base;
+		this.blockSize  = blockSize;
+		this.length     = length;
+		this.maxMapped  = drops && !storage.loadsEagerly() ? maxMapped : 0;
+		this.clock      = this.maxMapped > 0 ? new int[this.maxMapped] : null;
+		this.referenced = this.maxMapped > 0 ? new byte[16] : null;
+		this.storage    = storage;
+		this.metrics    = metrics;
+		this.writeBack  = this.maxMapped > 0 && writeBack && !storage.writesThrough() && mode != FileChannel.MapMode.READ_ONLY;
+		this.dirty      = this.writeBack ? new boolean[16] : null;
+	}
+
+	/**
+	 * Maps the next block of the file and appends it to the table. Must only be called by the writer.
+	 */
+	ByteBuffer add() throws IOException {
+		addUnmapped(1);
+		return get(count - 1);
+	}
+
+	/**
+	 * Appends <tt>n</tt> blocks to the table without mapping them, unless the storage loads all
+	 * the blocks eagerly. Must only be called by the writer.
+	 */
+	void addUnmapped(int n) throws IOException {
+		AtomicReferenceArray<ByteBuffer> a = maps;
+		if (count + n > a.length()) {
+			synchronized (this) {                      // map() must not write to the old array meanwhile
+				AtomicReferenceArray<ByteBuffer> b = new AtomicReferenceArray<ByteBuffer>(Math.max(count + n, a.length() << 1));
+				for (int i = 0; i < count; i++) b.set(i, a.get(i));
+				maps = b;
+				if (referenced != null) referenced = Arrays.copyOf(referenced, b.length());
+				if (dirty != null)      dirty      = Arrays.copyOf(dirty, b.length());
+			}
+		}
+		count += n;                                  // publishes the blocks
+		if (storage.loadsEagerly())
+			for (int i = count - n; i < count; i++) get(i);
+	}
+
+	/**
+	 * Returns the map of block <tt>i</tt>, mapping it if needed.
+	 */
+	ByteBuffer get(int i) throws IOException {
+		ByteBuffer m = maps.get(i);
+		if (m == null) return map(i);
+		byte[] r = referenced;
+		if (r != null && r[i] == 0) r[i] = 1;        // read first, a hot block's cache line stays shared
+		return m;
+	}
+
+	/**
+	 * Returns the map of block <tt>i</tt> like <tt>get()</tt>, to be written. A table which
+	 * writes back stores the block before dropping it.
+	 */
+	ByteBuffer getForWrite(int i) throws IOException {
+		ByteBuffer m = get(i);
+		if (dirty != null) dirty[i] = true;
+		return m;
+	}
+
+	/**
+	 * Returns the map of block <tt>i</tt> if it is mapped at the moment, <tt>null</tt> otherwise.
+	 */
+	ByteBuffer getIfMapped(int i) {
+		return maps.get(i);
+	}
+
+	/**
+	 * Forces block <tt>i</tt> to the disk, writing it back first if the storage does not write through.
+	 */
+	void force(int i) throws IOException {
+		ByteBuffer m = storage.writesThrough() ? get(i) : maps.get(i);
+		if (m != null) storage.force(channel, base + i * blockSize, m);   // a block never loaded is on the disk already
+	}
+
+	/**
+	 * Writes back the blocks loaded so far, if the storage does not write through, and forces
+	 * the file to the disk once. The blocks stay loaded.
+	 */
+	synchronized void forceAll() throws IOException {
+		if (!storage.writesThrough()) {
+			for (int i = 0; i < count; i++) {
+				ByteBuffer m = maps.get(i);
+				if (m != null) storage.store(channel, base + i * blockSize, m);
+			}
+		}
+		channel.force(false);
+	}
+
+	/**
+	 * Writes back the blocks the storage keeps in memory and frees all the blocks. The table
+	 * must not be used afterwards, by any thread.
+	 */
+	synchronized void release() throws IOException {
+		for (int i = 0; i < count; i++) {
+			ByteBuffer m = maps.get(i);
+			if (m == null) continue;
+			if (mode != FileChannel.MapMode.READ_ONLY) storage.store(channel, base + i * blockSize, m);
+			maps.set(i, null);
+			storage.free(m);
+		}
+		mapped = 0;
+		hand   = 0;
+	}
+
+	/**
+	 * Returns whether writes to the blocks reach the file right away, refer <tt>BlockStorage</tt>.
+	 */
+	boolean writesThrough() {
+		return storage.writesThrough();
+	}
+
+	/**
+	 * Returns the number of blocks in the table, mapped or not.
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the channel of the file the table maps.
+	 */
+	FileChannel channel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the number of blocks mapped at the moment.
+	 */
+	synchronized int mappedCount() {
+		return mapped;
+	}
+
+	private synchronized ByteBuffer map(int i) throws IOException {
+
+		ByteBuffer m = maps.get(i);
+		if (m != null) return m;                     // mapped by another thread meanwhile
+
+		// drop the first block the hand finds not touched since it passed last time; the
+		// readers may set the bits again meanwhile, so after two rounds any block will do.
+		// It is written back before anything changes, in case that fails
+		int drop = -1;
+		if (clock != null && mapped == maxMapped) {
+			byte[] r = referenced;
+			for (int k = 0; k < 2 * maxMapped && r[clock[hand]] != 0; k++) {
+				r[clock[hand]] = 0;
+				hand = (hand + 1) % maxMapped;
+			}
+			drop = clock[hand];
+			if (writeBack && dirty[drop]) {
+				storage.store(channel, base + drop * blockSize, maps.get(drop));
+				dirty[drop] = false;
+			}
+		}
+
+		long size = Math.min(blockSize, length - base - i * blockSize);
+		m = storage.load(channel, mode, base + i * blockSize, size);
+		if (metrics != null) metrics.recordMap(size);
+
+		if (clock == null) {
+			mapped++;
+		}
+		else if (drop < 0) {
+			clock[mapped++] = i;
+		}
+		else {
+			ByteBuffer old = maps.get(drop);
+			maps.set(drop, null);
+			if (writeBack) storage.free(old);        // nobody else holds it, refer getForWrite()
+			clock[hand] = i;
+			hand = (hand + 1) % maxMapped;
+		}
+		maps.set(i, m);
+		return m;
+	}
+}
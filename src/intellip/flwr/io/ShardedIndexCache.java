@@ -0,0 +1,388 @@
+package intellip.flwr.io;
+
+import intellip.flwr.util.Base;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A <tt>ShardedIndexCache</tt> spreads the items put into it over a number of
+ * <tt>IndexCache</tt> shards. Every shard has its own data and index cache files and its
+ * own write position, so threads putting items into different shards do not hold each
+ * other up. A thread is assigned a shard the first time it puts an item, round robin, and
+ * keeps putting into that shard. With at least as many shards as writer threads, every
+ * writer has a shard of its own.</p>
+ *
+ * <p>The handler returned by <tt>put()</tt> tells the shard of the item in its top
+ * <tt>64 - SHARD_SHIFT</tt> bits and the handler within the shard in the rest, hence
+ * <tt>get()</tt> goes straight to the right shard. All the shards are read concurrently,
+ * refer <tt>IndexCache.Builder.withConcurrentReaders()</tt>.</p>
+ *
+ * <p>Shard <tt>i</tt> keeps its files in <tt>DataCachePaths[i % DataCachePaths.length]</tt> and
+ * <tt>IndexCachePaths[i % IndexCachePaths.length]</tt>, so the shards can be put on different
+ * disks. The names of the shards are kept in a small <tt>.shards</tt> file in the first index
+ * cache path, which <tt>useExistingFile()</tt> reads to open the cache again.</p>
+ */
+public class ShardedIndexCache implements Closeable {
+
+	public static final int  SHARD_SHIFT = 56;                    // handler bits of the handler within a shard
+	private static final long LOCAL_MASK = (1L << SHARD_SHIFT) - 1;
+	private static final int  MAX_SHARDS = 1 << (63 - SHARD_SHIFT); // handlers stay positive
+
+	private final String        CacheName;                        // unique name of the sharded cache
+	private final IndexCache[]  shards;
+	private final AtomicInteger nextShard = new AtomicInteger();  // shard of the next new writer thread
+	private final ThreadLocal<Integer> writerShard = new ThreadLocal<Integer>();
+
+	/* ************************************************************************
+	 * Constructor uses builder pattern, Refer [EFFJ2, pp. 20]
+	 * ************************************************************************/
+
+	public static class Builder {
+
+		// mandatory parameters
+		private final String[] DataCachePaths;
+		private final String[] IndexCachePaths;
+
+		// optional parameters - initialized to default values where possible
+		private String  CacheName;
+		private boolean isReader      = false;
+		private int     shardCount    = Runtime.getRuntime().availableProcessors();
+		private int     LruCacheSize  = 1 << 27; // 128MB over all the shards
+		private long    block_size    = 1 << 14;
+		private int     maxMappedBlocks = 0;
+		private boolean isCompactIndex = false;
+		private boolean isCompress    = false;
+		private int     compressLevel = -1;      // default level of IndexCache
+		private IndexCache.Durability durability = IndexCache.Durability.NONE;
+		private long    commitInterval = 1000;
+		private double  compactThreshold = 0;
+		private long    compactInterval = 1000;
+		private boolean isDedup       = false;
+		private boolean isReadOnly    = false;
+		private BlockStorage storage  = BlockStorage.MMAP;
+		private boolean isMetrics     = false;
+
+		// all the shards in the same directories
+		public Builder( String DataCachePath, String IndexCachePath ) {
+			this(new String[] { DataCachePath }, new String[] { IndexCachePath });
+		}
+
+		// shard i in DataCachePaths[i % DataCachePaths.length] and IndexCachePaths[i % IndexCachePaths.length]
+		public Builder( String[] DataCachePaths, String[] IndexCachePaths ) {
+			if (DataCachePaths.length == 0 || IndexCachePaths.length == 0)
+				throw new IllegalArgumentException("At least one data and one index cache path is needed");
+			this.DataCachePaths  = DataCachePaths.clone();
+			this.IndexCachePaths = IndexCachePaths.clone();
+		}
+
+		// number of shards of a new cache, by default the number of processors
+		public Builder withShards( int shards ) {
+			if (shards < 1 || shards > MAX_SHARDS)
+				throw new IllegalArgumentException("Number of shards must be 1 - " + MAX_SHARDS);
+			this.shardCount = shards;
+			return this;
+		}
+
+		public Builder useExistingFile( String CacheName ) {
+			this.isReader  = true;
+			this.CacheName = CacheName;
+			return this;
+		}
+
+		// size of the in-memory LRU cache of index entries of all the shards together in bytes
+		public Builder withLRUCacheSize( int size ) {
+			this.LruCacheSize = size;
+			return this;
+		}
+
+		public Builder withBlockSize( long block_size ) {
+			this.block_size = block_size;
+			return this;
+		}
+
+		// refer IndexCache.Builder.withMaxMappedBlocks(), applies to every shard
+		public Builder withMaxMappedBlocks( int blocks ) {
+			this.maxMappedBlocks = blocks;
+			return this;
+		}
+
+		public Builder withCompactIndex() {
+			this.isCompactIndex = true;
+			return this;
+		}
+
+		public Builder compressCache() {
+			this.isCompress = true;
+			return this;
+		}
+
+		public Builder compressCache( int level ) {
+			this.isCompress    = true;
+			this.compressLevel = level;
+			return this;
+		}
+
+		// refer IndexCache.Builder.withDurability(), every shard is committed on its own
+		public Builder withDurability( IndexCache.Durability durability, long intervalMillis ) {
+			this.durability     = durability;
+			this.commitInterval = intervalMillis;
+			return this;
+		}
+
+		// refer IndexCache.Builder.withCompaction(), every shard is compacted on its own
+		public Builder withCompaction( double fragmentation, long intervalMillis ) {
+			this.compactThreshold = fragmentation;
+			this.compactInterval  = intervalMillis;
+			return this;
+		}
+
+		// refer IndexCache.Builder.readOnly(), only with useExistingFile()
+		public Builder readOnly() {
+			this.isReadOnly = true;
+			return this;
+		}
+
+		// refer IndexCache.Builder.withDeduplication(), identical items are only found within a shard
+		public Builder withDeduplication() {
+			this.isDedup = true;
+			return this;
+		}
+
+		// refer IndexCache.Builder.withStorage(), applies to every shard
+		public Builder withStorage( BlockStorage storage ) {
+			this.storage = storage;
+			return this;
+		}
+
+		// refer IndexCache.Builder.withMetrics(), every shard is registered under its own name
+		public Builder withMetrics() {
+			this.isMetrics = true;
+			return this;
+		}
+
+		public ShardedIndexCache build() throws Exception {
+			return new ShardedIndexCache(this);
+		}
+
+		// builder of shard i, named shardName if it exists already
+		private IndexCache.Builder shard( int i, int shards, String shardName ) {
+
+			IndexCache.Builder b = new IndexCache.Builder(DataCachePaths[i % DataCachePaths.length],
+			                                              IndexCachePaths[i % IndexCachePaths.length])
+				.withConcurrentReaders()
+				.withLRUCacheSize(LruCacheSize / shards)
+				.withBlockSize(block_size)
+				.withMaxMappedBlocks(maxMappedBlocks)
+				.withStorage(storage);
+
+			if (shardName != null)      b.useExistingFile(shardName);
+			if (isCompactIndex)         b.withCompactIndex();
+			if (isCompress)             b.compressCache();
+			if (compressLevel >= 0)     b.compressCache(compressLevel);
+			if (durability != IndexCache.Durability.NONE) b.withDurability(durability, commitInterval);
+			if (compactThreshold > 0)   b.withCompaction(compactThreshold, compactInterval);
+			if (isDedup)                b.withDeduplication();
+			if (isReadOnly)             b.readOnly();
+			if (isMetrics)              b.withMetrics();
+			return b;
+		}
+	}
+
+	// private constructor - this can only be invoked from the Builder's build() method
+	private ShardedIndexCache(Builder builder) throws Exception {
+
+		String manifest;
+		List<String> names = new ArrayList<String>();
+
+		if (builder.isReader) {
+			CacheName = builder.CacheName;
+			manifest  = builder.IndexCachePaths[0] + CacheName + ".shards";
+			if (!Base.isValidPath(manifest))
+				throw new FileNotFoundException("Shard list " + manifest + " not found!");
+
+			BufferedReader in = new BufferedReader(new FileReader(manifest));
+			try {
+				for (String line = in.readLine(); line != null; line = in.readLine())
+					if (line.trim().length() > 0) names.add(line.trim());
+			}
+			finally {
+				in.close();
+			}
+		}
+		else {
+			CacheName = String.valueOf(Math.abs(UUID.randomUUID().getMostSignificantBits()));
+			manifest  = builder.IndexCachePaths[0] + CacheName + ".shards";
+			for (int i = 0; i < builder.shardCount; i++) names.add(null);
+		}
+
+		shards = new IndexCache[names.size()];
+		try {
+			for (int i = 0; i < shards.length; i++)
+				shards[i] = builder.shard(i, shards.length, names.get(i)).build();
+		}
+		catch (Exception e) {
+			for (IndexCache shard : shards)
+				if (shard != null) shard.close();
+			throw e;
+		}
+
+		// the shard list is written once all the shards exist
+		if (!builder.isReader) {
+			PrintWriter out = new PrintWriter(new FileWriter(manifest));
+			try {
+				for (IndexCache shard : shards) out.println(shard.getCacheName());
+			}
+			finally {
+				out.close();
+			}
+			if (out.checkError()) throw new IOException("Can not write shard list " + manifest);
+		}
+	}
+
+	/**
+	 * Stores the array of bytes in the shard of the calling thread, refer <tt>IndexCache.put()</tt>.
+	 * @return handler long handler of the item, telling its shard too
+	 */
+	public long put( byte[] bytes ) throws IOException {
+		int shard = _writerShard();
+		return _handler(shard, shards[shard].put(bytes));
+	}
+
+	/**
+	 * Stores all the arrays of bytes in the shard of the calling thread in one go,
+	 * refer <tt>IndexCache.putAll()</tt>.
+	 */
+	public long[] putAll( List<byte[]> records ) throws IOException {
+		int shard = _writerShard();
+		long[] handlers = shards[shard].putAll(records);
+		for (int i = 0; i < handlers.length; i++)
+			handlers[i] = _handler(shard, handlers[i]);
+		return handlers;
+	}
+
+	public byte[] get( long handler ) throws Exception {
+		return _shard(handler).get(handler & LOCAL_MASK);
+	}
+
+	public ByteBuffer getView( long handler ) throws Exception {
+		return _shard(handler).getView(handler & LOCAL_MASK);
+	}
+
+	public void update( long handler, byte[] bytes ) throws IOException {
+		_shard(handler).update(handler & LOCAL_MASK, bytes);
+	}
+
+	public void delete( long handler ) throws IOException {
+		_shard(handler).delete(handler & LOCAL_MASK);
+	}
+
+	/**
+	 * Blocks until the item of the handler is committed, refer <tt>IndexCache.awaitCommit()</tt>.
+	 */
+	public void awaitCommit( long handler ) throws IOException, InterruptedException {
+		_shard(handler).awaitCommit(handler & LOCAL_MASK);
+	}
+
+	/**
+	 * Blocks until every item put so far into any shard is committed.
+	 */
+	public void commit() throws IOException, InterruptedException {
+		for (IndexCache shard : shards) shard.commit();
+	}
+
+	/**
+	 * Compacts the shards one after the other, refer <tt>IndexCache.compact()</tt>.
+	 */
+	public void compact() throws IOException, InterruptedException {
+		for (IndexCache shard : shards) shard.compact();
+	}
+
+	/**
+	 * Returns the name of the cache, which can be passed to <tt>useExistingFile()</tt> to open it again.
+	 */
+	public String getCacheName() {
+		return CacheName;
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Returns the number of items stored in all the shards together.
+	 */
+	public long getEntryCount() {
+		long n = 0;
+		for (IndexCache shard : shards) n += shard.getEntryCount();
+		return n;
+	}
+
+	/**
+	 * Returns the number of data bytes stored in all the shards together.
+	 */
+	public long getDataSize() {
+		long n = 0;
+		for (IndexCache shard : shards) n += shard.getDataSize();
+		return n;
+	}
+
+	/**
+	 * Returns the share of dead bytes in the data caches of all the shards together.
+	 */
+	public double getFragmentation() {
+		double dead = 0;
+		long   data = 0;
+		for (IndexCache shard : shards) {
+			long n = shard.getDataSize();
+			dead += shard.getFragmentation() * n;
+			data += n;
+		}
+		return data == 0 ? 0 : dead / data;
+	}
+
+	public void close() throws IOException {
+		IOException error = null;
+		for (IndexCache shard : shards) {
+			try { shard.close(); }
+			catch (IOException e) { if (error == null) error = e; }
+		}
+		if (error != null) throw error;
+	}
+
+	/*
+	 * HELPER Methods
+	 * ----------------------------------------------------------
+	 */
+
+	// shard the calling thread puts into, assigned round robin on its first put
+	private int _writerShard() {
+		Integer shard = writerShard.get();
+		if (shard == null) {
+			shard = (nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.length;
+			writerShard.set(shard);
+		}
+		return shard;
+	}
+
+	private IndexCache _shard( long handler ) {
+		int shard = (int) (handler >>> SHARD_SHIFT);
+		if (handler < 0 || shard >= shards.length)
+			throw new IllegalArgumentException("Invalid handler: " + handler);
+		return shards[shard];
+	}
+
+	private static long _handler( int shard, long handler ) {
+		return (long) shard << SHARD_SHIFT | handler;
+	}
+}
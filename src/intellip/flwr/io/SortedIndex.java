@@ -0,0 +1,524 @@
+package intellip.flwr.io;
+
+import intellip.flwr.util.Base;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ConcurrentModificationException;
+
+/**
+ * <p>A persistent sorted index from keys to the handlers of an <tt>IndexCache</tt>, for
+ * finding all the items whose key falls in a range, e.g. a range of timestamps, without
+ * reading the whole cache. Keys are arrays of bytes ordered lexicographically, bytes taken
+ * unsigned, or longs. Any number of items can have the same key.</p>
+ *
+ * <p>The index is a B+tree [ALGO4, pp. 866] kept in a memory mapped <tt>.bpt</tt> file beside
+ * the index cache file. Every page of the tree is one block of the cache, i.e.
+ * <tt>BlockSize</tt> bytes, and page <tt>i</tt> is block <tt>i</tt> of the file (page 0 is the
+ * header). A page holds a small page header and fixed width entries:</p>
+ * <pre>
+ *     [ type    : 4 byte ]  LEAF or INNER
+ *     [ count   : 4 byte ]  entries in the page
+ *     [ link    : 8 byte ]  next leaf for a leaf, leftmost child for an inner page
+ *     [ entry 0 ] [ entry 1 ] ...
+ *
+ *     entry = [ keyLen : 2 byte ] [ key : maxKeyLength byte ] [ handler : 8 byte ] [ child : 8 byte ]
+ * </pre>
+ * <p>Entries are ordered by key and then by handler, so every entry is unique. The leaves
+ * are chained in key order, hence a range scan descends the tree once and then walks the
+ * leaves, and its cost depends on the number of items it returns, not on the size of the
+ * index. Pages emptied by <tt>remove()</tt> are not merged, they stay in the chain.</p>
+ *
+ * <p>All public methods are synchronized. A <tt>Cursor</tt> throws
+ * <tt>ConcurrentModificationException</tt> if the index changes while it is used.</p>
+ */
+public final class SortedIndex implements Closeable {
+
+	private static final long MAGIC        = 0x464C575242505400L | 1;   // "FLWRBPT", version 1
+
+	// header page
+	private static final int  H_ROOT       = 8;
+	private static final int  H_PAGES      = 16;
+	private static final int  H_SIZE       = 24;
+	private static final int  H_KEY_LENGTH = 32;
+
+	// page header
+	private static final int  P_TYPE       = 0;
+	private static final int  P_COUNT      = 4;
+	private static final int  P_LINK       = 8;
+	private static final int  PAGE_HEADER  = 16;
+	private static final int  LEAF         = 1;
+	private static final int  INNER        = 2;
+
+	private final RandomAccessFile file;
+	private final MapTable         pages;           // page i is block i of the file
+	private final ByteBuffer       header;
+	private final int              maxKeyLength;
+	private final int              entrySize;       // multiple of 8, entries are moved a long at a time
+	private final int              capacity;        // entries per page
+
+	private long root;
+	private long pageCount;
+	private long size;
+	private int  modCount;                          // changes, for failing cursors fast
+
+	// entry promoted by the last split, and the one waiting to be put into the parent
+	private final byte[] splitKey;
+	private int          splitLen;
+	private long         splitHandler;
+	private final byte[] pendingKey;
+	private boolean      found;                     // whether the last _insert() found the entry
+	private final byte[] longKey = new byte[8];
+
+	/**
+	 * Opens the sorted index <tt>name</tt> of the cache, or creates an empty one. A cache can
+	 * have any number of sorted indexes, each with a name of its own.
+	 * @param keyLength longest key in bytes, ignored if the index exists already (8 for long keys)
+	 */
+	public SortedIndex(IndexCache cache, String name, int keyLength) throws IOException {
+
+		String idx      = cache.getIndexCacheName();
+		String fileName = idx.substring(0, idx.length() - "idx".length()) + name + ".bpt";
+		long   pageSize = cache.getBlockSize();
+
+		boolean exists = Base.isValidPath(fileName);
+		file   = new RandomAccessFile(fileName, "rw");
+		pages  = new MapTable(file.getChannel(), FileChannel.MapMode.READ_WRITE, 0, pageSize, 0);
+
+		if (exists) {
+			pages.addUnmapped((int) (file.length() / pageSize));
+			header = pages.get(0);
+			if (header.getLong(0) != MAGIC)
+				throw new IOException("Sorted index " + fileName + " has an unsupported layout");
+			maxKeyLength = (int) header.getLong(H_KEY_LENGTH);
+			if (maxKeyLength < 1 || maxKeyLength > 0xFFFF)
+				throw new IOException("Sorted index " + fileName + " has an unsupported layout");
+		}
+		else {
+			if (keyLength < 1 || keyLength > 0xFFFF)
+				throw new IllegalArgumentException("Invalid key length: " + keyLength);
+			header = pages.add();
+			header.putLong(0, MAGIC);
+			header.putLong(H_KEY_LENGTH, keyLength);
+			maxKeyLength = keyLength;
+		}
+
+		entrySize  = (2 + maxKeyLength + 16 + 7) & ~7;
+		capacity   = (int) ((pageSize - PAGE_HEADER) / entrySize);
+		if (capacity < 4) {
+			file.close();
+			throw new IllegalArgumentException("Keys of " + maxKeyLength + " bytes do not fit in pages of " + pageSize + " bytes");
+		}
+		splitKey   = new byte[maxKeyLength];
+		pendingKey = new byte[maxKeyLength];
+
+		if (exists) {
+			root      = header.getLong(H_ROOT);
+			pageCount = header.getLong(H_PAGES);
+			size      = header.getLong(H_SIZE);
+		}
+		else {
+			pageCount = 1;
+			root      = _allocate(LEAF);
+			_writeHeader();
+		}
+	}
+
+	/**
+	 * A position in the index, moved over the entries of a range by <tt>next()</tt>.
+	 */
+	public final class Cursor {
+
+		private static final int TO     = 0;     // up to an upper bound, exclusive
+		private static final int PREFIX = 1;     // while the key starts with the bound
+		private static final int EXACT  = 2;     // while the key equals the bound
+
+		private final byte[] bound;              // null for no bound
+		private final int    mode;
+		private final int    expectedModCount;
+		private long page;                       // 0 past the end
+		private int  index;
+		private int  offset = -1;                // of the current entry in its page
+
+		private Cursor(byte[] from, byte[] bound, int mode) throws IOException {
+			this.bound            = bound;
+			this.mode             = mode;
+			this.expectedModCount = modCount;
+
+			byte[] key = from == null ? new byte[0] : from;
+			page  = _leaf(key, key.length, Long.MIN_VALUE);
+			index = _lowerBound(pages.get((int) page), key, key.length, Long.MIN_VALUE);
+		}
+
+		/**
+		 * Moves to the next entry of the range.
+		 * @return false if there are no more entries
+		 */
+		public boolean next() throws IOException {
+			synchronized (SortedIndex.this) {
+				if (modCount != expectedModCount) throw new ConcurrentModificationException();
+				while (page != 0) {
+					ByteBuffer p = pages.get((int) page);
+					if (index < p.getInt(P_COUNT)) {
+						int o = _entry(index);
+						if (!_inRange(p, o)) break;
+						offset = o;
+						index++;
+						return true;
+					}
+					page  = p.getLong(P_LINK);
+					index = 0;
+				}
+				page   = 0;
+				offset = -1;
+				return false;
+			}
+		}
+
+		/**
+		 * Returns the handler of the current entry.
+		 */
+		public long handler() throws IOException {
+			synchronized (SortedIndex.this) {
+				return _current().getLong(offset + 2 + maxKeyLength);
+			}
+		}
+
+		/**
+		 * Returns a copy of the key of the current entry.
+		 */
+		public byte[] key() throws IOException {
+			synchronized (SortedIndex.this) {
+				ByteBuffer p = _current();
+				byte[] key = new byte[p.getShort(offset) & 0xFFFF];
+				for (int i = 0; i < key.length; i++) key[i] = p.get(offset + 2 + i);
+				return key;
+			}
+		}
+
+		/**
+		 * Returns the key of the current entry of an index of long keys.
+		 */
+		public long longKey() throws IOException {
+			synchronized (SortedIndex.this) {
+				ByteBuffer p = _current();
+				if ((p.getShort(offset) & 0xFFFF) != 8) throw new IllegalStateException("Key is not a long");
+				return p.getLong(offset + 2) ^ Long.MIN_VALUE;
+			}
+		}
+
+		private ByteBuffer _current() throws IOException {
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			if (offset < 0) throw new IllegalStateException("Cursor is not on an entry");
+			return pages.get((int) page);
+		}
+
+		private boolean _inRange(ByteBuffer p, int o) {
+			if (bound == null) return true;
+			int len = p.getShort(o) & 0xFFFF;
+			switch (mode) {
+			case TO:
+				return _compareKey(p, o, bound, bound.length) < 0;
+			case PREFIX:
+				if (len < bound.length) return false;
+				for (int i = 0; i < bound.length; i++)
+					if (p.get(o + 2 + i) != bound[i]) return false;
+				return true;
+			default:
+				return _compareKey(p, o, bound, bound.length) == 0;
+			}
+		}
+	}
+
+	/**
+	 * Adds an entry of the key and the handler. Adding an entry that exists already does nothing.
+	 */
+	public synchronized void put(byte[] key, long handler) throws IOException {
+
+		if (key.length > maxKeyLength)
+			throw new IllegalArgumentException("Key of " + key.length + " bytes is longer than " + maxKeyLength + " bytes");
+
+		long right = _insert(root, key, key.length, handler);
+		if (right != 0) {
+			// the root was split, the tree grows by one level
+			long page = _allocate(INNER);
+			ByteBuffer p = pages.get((int) page);
+			p.putLong(P_LINK, root);
+			_setEntry(p, 0, splitKey, splitLen, splitHandler, right);
+			p.putInt(P_COUNT, 1);
+			root = page;
+		}
+		if (!found) {
+			size++;
+			modCount++;
+			_writeHeader();
+		}
+	}
+
+	public synchronized void put(long key, long handler) throws IOException {
+		put(_encode(key), handler);
+	}
+
+	/**
+	 * Removes the entry of the key and the handler.
+	 * @return false if there was no such entry
+	 */
+	public synchronized boolean remove(byte[] key, long handler) throws IOException {
+
+		long page = _leaf(key, key.length, handler);
+		ByteBuffer p = pages.get((int) page);
+		int count = p.getInt(P_COUNT);
+		int i = _lowerBound(p, key, key.length, handler);
+		if (i == count || _compare(p, _entry(i), key, key.length, handler) != 0) return false;
+
+		_shift(p, i + 1, count, -1);
+		p.putInt(P_COUNT, count - 1);
+		size--;
+		modCount++;
+		_writeHeader();
+		return true;
+	}
+
+	public synchronized boolean remove(long key, long handler) throws IOException {
+		return remove(_encode(key), handler);
+	}
+
+	/**
+	 * Returns a cursor over the entries with keys from <tt>from</tt>, inclusive, to <tt>to</tt>,
+	 * exclusive, in key order.
+	 * @param from lowest key, <tt>null</tt> to start at the first key
+	 * @param to   key past the range, <tt>null</tt> to go on to the last key
+	 */
+	public synchronized Cursor range(byte[] from, byte[] to) throws IOException {
+		return new Cursor(from, to, Cursor.TO);
+	}
+
+	/**
+	 * Returns a cursor over the entries with long keys from <tt>from</tt>, inclusive, to <tt>to</tt>, exclusive.
+	 */
+	public synchronized Cursor range(long from, long to) throws IOException {
+		return new Cursor(_encode(from).clone(), _encode(to).clone(), Cursor.TO);
+	}
+
+	/**
+	 * Returns a cursor over the entries whose key starts with <tt>prefix</tt>.
+	 */
+	public synchronized Cursor prefix(byte[] prefix) throws IOException {
+		return new Cursor(prefix, prefix, Cursor.PREFIX);
+	}
+
+	/**
+	 * Returns a cursor over the entries of the key, in the order of their handlers.
+	 */
+	public synchronized Cursor find(byte[] key) throws IOException {
+		return new Cursor(key, key, Cursor.EXACT);
+	}
+
+	public synchronized Cursor find(long key) throws IOException {
+		byte[] k = _encode(key).clone();
+		return new Cursor(k, k, Cursor.EXACT);
+	}
+
+	/**
+	 * Returns the number of entries in the index.
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	public synchronized void close() throws IOException {
+		pages.release();
+		file.close();
+	}
+
+	/*
+	 * HELPER Methods
+	 * ----------------------------------------------------------
+	 */
+
+	// inserts the entry below the page, returns the page split off it, if any, with its first entry in split*
+	private long _insert(long page, byte[] key, int len, long handler) throws IOException {
+
+		ByteBuffer p = pages.get((int) page);
+		int count = p.getInt(P_COUNT);
+
+		if (p.getInt(P_TYPE) == LEAF) {
+			int i = _lowerBound(p, key, len, handler);
+			found = i < count && _compare(p, _entry(i), key, len, handler) == 0;
+			if (found) return 0;
+
+			if (count < capacity) {
+				_shift(p, i, count, 1);
+				_setEntry(p, i, key, len, handler, 0);
+				p.putInt(P_COUNT, count + 1);
+				return 0;
+			}
+
+			// split the leaf in two halves and put the entry into the right one
+			int half = count / 2;
+			long right = _allocate(LEAF);
+			ByteBuffer r = pages.get((int) right);
+			_copy(p, half, r, 0, count - half);
+			r.putInt(P_COUNT, count - half);
+			r.putLong(P_LINK, p.getLong(P_LINK));
+			p.putInt(P_COUNT, half);
+			p.putLong(P_LINK, right);
+
+			if (i <= half) {
+				_shift(p, i, half, 1);
+				_setEntry(p, i, key, len, handler, 0);
+				p.putInt(P_COUNT, half + 1);
+			}
+			else {
+				_shift(r, i - half, count - half, 1);
+				_setEntry(r, i - half, key, len, handler, 0);
+				r.putInt(P_COUNT, count - half + 1);
+			}
+			_readSplit(r, 0);
+			return right;
+		}
+
+		int  i     = _upperBound(p, key, len, handler);
+		long child = i == 0 ? p.getLong(P_LINK) : p.getLong(_entry(i - 1) + 2 + maxKeyLength + 8);
+		long split = _insert(child, key, len, handler);
+		if (split == 0) return 0;
+
+		// the child was split, its new sibling goes in at position i
+		System.arraycopy(splitKey, 0, pendingKey, 0, splitLen);
+		int  pendingLen     = splitLen;
+		long pendingHandler = splitHandler;
+
+		if (count < capacity) {
+			_shift(p, i, count, 1);
+			_setEntry(p, i, pendingKey, pendingLen, pendingHandler, split);
+			p.putInt(P_COUNT, count + 1);
+			return 0;
+		}
+
+		// split the inner page, its middle entry moves up to the parent
+		int  mid   = count / 2;
+		long right = _allocate(INNER);
+		ByteBuffer r = pages.get((int) right);
+		_readSplit(p, mid);
+		r.putLong(P_LINK, p.getLong(_entry(mid) + 2 + maxKeyLength + 8));
+		_copy(p, mid + 1, r, 0, count - mid - 1);
+		r.putInt(P_COUNT, count - mid - 1);
+		p.putInt(P_COUNT, mid);
+
+		ByteBuffer q = i <= mid ? p : r;
+		int at = i <= mid ? i : i - mid - 1;
+		int n  = q.getInt(P_COUNT);
+		_shift(q, at, n, 1);
+		_setEntry(q, at, pendingKey, pendingLen, pendingHandler, split);
+		q.putInt(P_COUNT, n + 1);
+		return right;
+	}
+
+	// leaf the entry of the key and the handler belongs to
+	private long _leaf(byte[] key, int len, long handler) throws IOException {
+		long page = root;
+		for (ByteBuffer p = pages.get((int) page); p.getInt(P_TYPE) == INNER; p = pages.get((int) page)) {
+			int i = _upperBound(p, key, len, handler);
+			page  = i == 0 ? p.getLong(P_LINK) : p.getLong(_entry(i - 1) + 2 + maxKeyLength + 8);
+		}
+		return page;
+	}
+
+	// first entry of the page not less than the key and the handler
+	private int _lowerBound(ByteBuffer p, byte[] key, int len, long handler) {
+		int lo = 0, hi = p.getInt(P_COUNT);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (_compare(p, _entry(mid), key, len, handler) < 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	// first entry of the page greater than the key and the handler
+	private int _upperBound(ByteBuffer p, byte[] key, int len, long handler) {
+		int lo = 0, hi = p.getInt(P_COUNT);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (_compare(p, _entry(mid), key, len, handler) <= 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	private int _compare(ByteBuffer p, int o, byte[] key, int len, long handler) {
+		int c = _compareKey(p, o, key, len);
+		return c != 0 ? c : Long.compare(p.getLong(o + 2 + maxKeyLength), handler);
+	}
+
+	private int _compareKey(ByteBuffer p, int o, byte[] key, int len) {
+		int elen = p.getShort(o) & 0xFFFF;
+		int n    = Math.min(elen, len);
+		for (int i = 0; i < n; i++) {
+			int c = (p.get(o + 2 + i) & 0xFF) - (key[i] & 0xFF);
+			if (c != 0) return c;
+		}
+		return elen - len;
+	}
+
+	private void _setEntry(ByteBuffer p, int i, byte[] key, int len, long handler, long child) {
+		int o = _entry(i);
+		p.putShort(o, (short) len);
+		for (int j = 0; j < len; j++) p.put(o + 2 + j, key[j]);
+		p.putLong(o + 2 + maxKeyLength,     handler);
+		p.putLong(o + 2 + maxKeyLength + 8, child);
+	}
+
+	// copies entry i of the page into split*
+	private void _readSplit(ByteBuffer p, int i) {
+		int o = _entry(i);
+		splitLen = p.getShort(o) & 0xFFFF;
+		for (int j = 0; j < splitLen; j++) splitKey[j] = p.get(o + 2 + j);
+		splitHandler = p.getLong(o + 2 + maxKeyLength);
+	}
+
+	// moves entries [from, to) of the page by the given number of places
+	private void _shift(ByteBuffer p, int from, int to, int by) {
+		int start = _entry(from), end = _entry(to), d = by * entrySize;
+		if (d > 0)
+			for (int o = end - 8; o >= start; o -= 8) p.putLong(o + d, p.getLong(o));
+		else
+			for (int o = start; o < end; o += 8) p.putLong(o + d, p.getLong(o));
+	}
+
+	private void _copy(ByteBuffer from, int i, ByteBuffer to, int j, int n) {
+		int s = _entry(i), d = _entry(j);
+		for (int k = 0; k < n * entrySize; k += 8) to.putLong(d + k, from.getLong(s + k));
+	}
+
+	private long _allocate(int type) throws IOException {
+		long page = pageCount++;
+		while (pages.size() <= page) pages.add();
+		ByteBuffer p = pages.get((int) page);
+		p.putInt(P_TYPE, type);
+		p.putInt(P_COUNT, 0);
+		p.putLong(P_LINK, 0);
+		_writeHeader();
+		return page;
+	}
+
+	private int _entry(int i) {
+		return PAGE_HEADER + i * entrySize;
+	}
+
+	// big endian with the sign flipped, so that the bytes sort like the longs
+	private byte[] _encode(long key) {
+		long k = key ^ Long.MIN_VALUE;
+		for (int i = 7; i >= 0; i--, k >>>= 8) longKey[i] = (byte) k;
+		return longKey;
+	}
+
+	private void _writeHeader() {
+		header.putLong(H_ROOT,  root);
+		header.putLong(H_PAGES, pageCount);
+		header.putLong(H_SIZE,  size);
+	}
+}
@@ -1,37 +1,35 @@
 package intellip.flwr.math;
 
-import sun.misc.Cleaner;
-import sun.nio.ch.DirectBuffer;
+import intellip.flwr.io.BlockFile;
+import intellip.flwr.io.BlockStorage;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 
 public class LargeDoubleMatrix implements Closeable {
     private static final int MAPPING_SIZE = 1 << 30;
-    private final RandomAccessFile raf;
+    private static final int BUFFER_SIZE  = 1 << 20;   // blocks which are not memory maps are read whole
+    private static final int MAX_BUFFERS  = 64;        // and at most this many are kept in memory
+    private final BlockFile blocks;
     private final int width;
     private final int height;
-    private final List<MappedByteBuffer> mappings = new ArrayList<MappedByteBuffer>();
+    private final int blockSize;
 
     public LargeDoubleMatrix(String filename, int width, int height) throws IOException {
-        this.raf = new RandomAccessFile(filename, "rw");
-        try {
-            this.width = width;
-            this.height = height;
-            long size = 8L * width * height;
-            for (long offset = 0; offset < size; offset += MAPPING_SIZE) {
-                long size2 = Math.min(size - offset, MAPPING_SIZE);
-                mappings.add(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, size2));
-            }
-        } catch (IOException e) {
-            raf.close();
-            throw e;
-        }
+        this(filename, width, height, BlockStorage.MMAP);
+    }
+
+    // refer BlockStorage, e.g. CHANNEL for sparse access to matrices much larger than the memory.
+    // A matrix which is not memory mapped must be used by one thread at a time, refer BlockFile
+    public LargeDoubleMatrix(String filename, int width, int height, BlockStorage storage) throws IOException {
+        this.width = width;
+        this.height = height;
+        long size = 8L * width * height;
+        int block = storage == BlockStorage.MMAP ? MAPPING_SIZE : BUFFER_SIZE;
+        this.blockSize = (int) Math.min(block, Math.max(8, size));
+        this.blocks = new BlockFile(filename, size, blockSize, storage, storage == BlockStorage.MMAP ? 0 : MAX_BUFFERS);
     }
 
     protected long position(int x, int y) {
@@ -50,30 +48,42 @@ public class LargeDoubleMatrix implements Closeable {
         assert x >= 0 && x < width;
         assert y >= 0 && y < height;
         long p = position(x, y) * 8;
-        int mapN = (int) (p / MAPPING_SIZE);
-        int offN = (int) (p % MAPPING_SIZE);
-        return mappings.get(mapN).getDouble(offN);
+        int mapN = (int) (p / blockSize);
+        int offN = (int) (p % blockSize);
+        return block(mapN).getDouble(offN);
     }
 
     public void set(int x, int y, double d) {
         assert x >= 0 && x < width;
         assert y >= 0 && y < height;
         long p = position(x, y) * 8;
-        int mapN = (int) (p / MAPPING_SIZE);
-        int offN = (int) (p % MAPPING_SIZE);
-        mappings.get(mapN).putDouble(offN, d);
+        int mapN = (int) (p / blockSize);
+        int offN = (int) (p % blockSize);
+        blockForWrite(mapN).putDouble(offN, d);
+    }
+
+    // forces the matrix to the disk
+    public void flush() throws IOException {
+        blocks.force();
     }
 
     public void close() throws IOException {
-        for (MappedByteBuffer mapping : mappings)
-            clean(mapping);
-        raf.close();
+        blocks.close();
+    }
+
+    private ByteBuffer block(int n) {
+        try {
+            return blocks.block(n);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    private void clean(MappedByteBuffer mapping) {
-        if (mapping == null) return;
-        Cleaner cleaner = ((DirectBuffer) mapping).cleaner();
-        if (cleaner != null) cleaner.clean();
+    private ByteBuffer blockForWrite(int n) {
+        try {
+            return blocks.blockForWrite(n);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
-
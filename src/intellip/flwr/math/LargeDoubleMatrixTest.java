@@ -1,14 +1,15 @@
 package intellip.flwr.math;
 
+import java.io.File;
 import java.io.IOException;
 
 public class LargeDoubleMatrixTest {
     
-    public static void getSetMatrix() throws IOException {
+    public static void getSetMatrix(String filename) throws IOException {
         long start = System.nanoTime();
         final long used0 = usedMemory();
         
-        LargeDoubleMatrix matrix = new LargeDoubleMatrix("/Users/akash/largeFile.txt", 1000, 1000);
+        LargeDoubleMatrix matrix = new LargeDoubleMatrix(filename, 1000, 1000);
         
         // writing
         for (int i = 0; i < matrix.width(); i++)
@@ -36,9 +37,10 @@ public class LargeDoubleMatrixTest {
         return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
     }
     
+    // usage: LargeDoubleMatrixTest [directory], default is java.io.tmpdir
     public static void main(String[] args) {
     	try {
-    		getSetMatrix();
+    		getSetMatrix(new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "largeFile.txt").getPath());
     	} catch(Exception e) { e.printStackTrace(); }
     }
 }
\ No newline at end of file
@@ -62,7 +62,7 @@ public final class Base {
 		if (len % 2 != 0) return null;
 		char[] buffer = new char[len >> 1];
 		
-		for(int i = 0; i < len; i++) 
+		for(int i = 0; i < buffer.length; i++) 
 		{
 		 int bpos = i << 1;
 		 char c = (char)(((bytes[offset + bpos]&0x00FF)<<8) + (bytes[offset + bpos + 1]&0x00FF));
@@ -0,0 +1,99 @@
+package intellip.flwr.util;
+
+import java.io.File;
+
+/**
+ * <p>One micro benchmark of <tt>MicroBenchmarks</tt>: an operation timed over a number of
+ * iterations of a fixed duration, after as many warmup iterations so the JIT compiler is
+ * done with it. <tt>setUp()</tt> and <tt>tearDown()</tt> run once around all iterations and
+ * <tt>reset()</tt> before every one of them, none of them is timed.</p>
+ *
+ * <p>The operation is called in batches between two reads of the clock, the batch growing
+ * during warmup until reading the clock is noise, and the values it returns are summed up
+ * and published once per iteration, so the JIT compiler can not drop the operation as dead
+ * code. An operation should hence return something it computed rather than a constant.</p>
+ */
+abstract class Bench {
+
+	private static final long   MIN_BATCH_NANOS = 10000;      // a batch at least takes this long after warmup
+	private static final int    MAX_BATCH       = 1 << 20;
+	private static final double Z_999           = 3.291;      // 99.9% quantile of the normal distribution
+
+	static volatile long sink;                                // where the results of the operations end up
+
+	final String name;
+
+	Bench(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Prepares the benchmark, e.g. creates and fills a cache in <tt>dir</tt>.
+	 * @param dir File empty directory of the benchmark, removed after <tt>tearDown()</tt>
+	 */
+	void setUp(File dir) throws Exception {
+	}
+
+	/**
+	 * Called before every iteration, e.g. to start with a new cache.
+	 */
+	void reset() throws Exception {
+	}
+
+	/**
+	 * The operation timed, <tt>i</tt> counts the calls of the iteration.
+	 */
+	abstract long op(int i) throws Exception;
+
+	void tearDown() throws Exception {
+	}
+
+	/**
+	 * Runs the warmup and the measured iterations, returns the nanoseconds per operation of
+	 * every measured iteration.
+	 */
+	final double[] run(int warmups, int iterations, long iterationMillis) throws Exception {
+
+		double[] nanosPerOp = new double[iterations];
+		int      batch      = 1;
+
+		for (int it = -warmups; it < iterations; it++) {
+			reset();
+
+			long iterationNanos = iterationMillis * 1000000;
+			long result         = 0;
+			long ops            = 0;
+			int  i              = 0;
+			long start          = System.nanoTime();
+			long now            = start;
+			do {
+				long batchStart = now;
+				for (int k = 0; k < batch; k++) result += op(i++);
+				ops += batch;
+				now  = System.nanoTime();
+				if (it < 0 && now - batchStart < MIN_BATCH_NANOS && batch < MAX_BATCH) batch <<= 1;
+			} while (now - start < iterationNanos);
+
+			sink += result;
+			if (it >= 0) nanosPerOp[it] = (double) (now - start) / ops;
+		}
+		return nanosPerOp;
+	}
+
+	static double mean(double[] values) {
+		double sum = 0;
+		for (double v : values) sum += v;
+		return sum / values.length;
+	}
+
+	/**
+	 * Returns the half width of the 99.9% confidence interval of the mean, 0 for one value.
+	 */
+	static double error(double[] values) {
+		if (values.length < 2) return 0;
+		double mean = mean(values);
+		double var  = 0;
+		for (double v : values) var += (v - mean) * (v - mean);
+		return Z_999 * Math.sqrt(var / (values.length - 1)) / Math.sqrt(values.length);
+	}
+}
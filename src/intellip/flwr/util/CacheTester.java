@@ -2,16 +2,18 @@ package intellip.flwr.util;
 
 import intellip.flwr.io.IndexCache;
 
+import java.io.File;
 import java.util.Random;
 
 public class CacheTester {
   
-	private static final String CACHE_PATH = "/Users/Akash/temp/";
-	
 
 	
+	// usage: CacheTester [directory], default is java.io.tmpdir
 	public static void main (String[] args) throws Exception {
 		
+		String CACHE_PATH = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+		if (!CACHE_PATH.endsWith(File.separator)) CACHE_PATH += File.separator;
 		
 		IndexCache cache_new   = null;
 		//IndexCache cache_exist = null;
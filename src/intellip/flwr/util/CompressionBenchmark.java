@@ -0,0 +1,88 @@
+package intellip.flwr.util;
+
+import intellip.flwr.io.IndexCache;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Compares the disk footprint and the throughput of a plain <tt>IndexCache</tt> against
+ * compressed ones at various compression levels and block sizes.
+ *
+ * <pre>
+ * usage: CompressionBenchmark [directory] [rows]
+ * </pre>
+ * Every configuration runs in its own sub-directory of <tt>directory</tt> (default is
+ * <tt>java.io.tmpdir</tt>) which is removed afterwards.
+ */
+public class CompressionBenchmark {
+
+	private static final String CHARSET = "UTF-16BE";
+	private static final String SEED    = "This is just a bloody dumb boring lines of text which does not mean anything and only exists to find flaw in others. ";
+
+	// { compression level (0 - not compressed), block size }
+	private static final int[][] CONFIGS = {
+		{ 0, 1 << 16 },
+		{ 1, 1 << 14 },
+		{ 1, 1 << 16 },
+		{ 6, 1 << 16 },
+		{ 9, 1 << 16 },
+	};
+
+	public static void main (String[] args) throws Exception {
+
+		String dir  = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+		int    rows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		if (!dir.endsWith(File.separator)) dir += File.separator;
+
+		// highly repetitive UTF-16 text rows of varying length
+		Random rand = new Random(42);
+		byte[][] data = new byte[rows][];
+		long rawBytes = 0;
+		for (int i = 0; i < rows; i++) {
+			StringBuilder b = new StringBuilder();
+			int count = 1 + rand.nextInt(4);
+			for (int j = 0; j < count; j++) b.append(SEED);
+			b.append(i);
+			data[i] = b.toString().getBytes(CHARSET);
+			rawBytes += data[i].length;
+		}
+		System.out.printf("%,d rows, %,d bytes%n", rows, rawBytes);
+		System.out.printf("%-6s %-8s %14s %8s %12s %12s %12s%n", "level", "block", "disk bytes", "ratio", "put MB/s", "seq get/s", "rnd get/s");
+
+		for (int[] config : CONFIGS) {
+
+			File runDir = new File(dir + "flwr-compression-" + System.nanoTime());
+			if (!runDir.mkdirs()) throw new IllegalStateException("Can not create " + runDir);
+			String path = runDir.getPath() + File.separator;
+
+			IndexCache.Builder builder = new IndexCache.Builder(path, path).withBlockSize(config[1]);
+			if (config[0] > 0) builder.compressCache(config[0]);
+			IndexCache cache = builder.build();
+
+			long start = System.nanoTime();
+			long[] handlers = cache.putAll(data);
+			long putTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < rows; i++) cache.get(handlers[i]);
+			long seqTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < rows; i++) cache.get(handlers[rand.nextInt(rows)]);
+			long rndTime = System.nanoTime() - start;
+
+			cache.close();
+			long disk = 0;
+			for (File f : runDir.listFiles()) {
+				disk += f.length();
+				f.delete();
+			}
+			runDir.delete();
+
+			System.out.printf("%-6s %-8d %,14d %8.2f %12.1f %,12.0f %,12.0f%n",
+					config[0] == 0 ? "none" : String.valueOf(config[0]), config[1], disk, (double) rawBytes / disk,
+					rawBytes / 1e6 / (putTime / 1e9), rows / (seqTime / 1e9), rows / (rndTime / 1e9));
+		}
+	}
+}
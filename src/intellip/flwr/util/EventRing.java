@@ -0,0 +1,285 @@
+package intellip.flwr.util;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>A bounded ring buffer of log events, written into by any number of threads without
+ * locking and without allocating, and drained by a background thread which formats the
+ * events and hands them to a <tt>Sink</tt>. An event is a message template with up to one
+ * object and three <tt>long</tt> or <tt>double</tt> arguments, which replace the <tt>{}</tt>
+ * of the template in that order. A <tt>double</tt> is passed as its raw long bits and
+ * flagged in a bit mask, so neither is boxed; the mask also flags whether an object was
+ * passed, so a <tt>null</tt> one is printed as such. The arguments are only turned into
+ * text by the background thread, hence the template must be a constant and the object must
+ * not change after it is logged.</p>
+ *
+ * <p>A writer claims the next sequence number with a CAS, fills the slot of the sequence
+ * and then publishes it by writing the sequence into the slot. The background thread
+ * drains the slots in sequence order and frees a slot by moving the consumed sequence on.
+ * When the writers are a whole ring ahead of the background thread an event is dropped
+ * rather than waited for, and counted, so a slow sink never holds up a writer.</p>
+ */
+final class EventRing {
+
+	private static final long IDLE_NANOS    = 1000000;         // background thread sleep when there is nothing to drain
+	private static final long CLOSE_MILLIS  = 1000;            // how long the shutdown waits for the events left
+
+	static final int          OBJECT        = 1 << 3;          // flag of publish(): the event has an object, maybe null
+
+	/**
+	 * Where the formatted events go, called by the background thread only.
+	 */
+	interface Sink {
+		void write(StringBuilder line) throws IOException;
+		void flush() throws IOException;
+		void close() throws IOException;
+	}
+
+	/**
+	 * Sink printing the events to a stream, e.g. <tt>System.err</tt>.
+	 */
+	static Sink stream(final PrintStream out) {
+		return new Sink() {
+			public void write(StringBuilder line) {
+				out.append(line).println();
+			}
+			public void flush() {
+				out.flush();
+			}
+			public void close() {
+				out.flush();                             // the stream is not ours to close
+			}
+		};
+	}
+
+	private final int             mask;
+	private final String[]        levels;
+	private final String[]        messages;
+	private final Object[]        objects;
+	private final Thread[]        threads;
+	private final long[]          times;
+	private final long[]          args;                        // 3 per slot
+	private final byte[]          argCounts;
+	private final byte[]          flags;                       // bit i set if argument i is a double, OBJECT
+	private final AtomicLongArray published;                   // sequence of the event in each slot
+	private final AtomicLong      next    = new AtomicLong();  // sequence of the next event
+	private final AtomicLong      dropped = new AtomicLong();
+	private volatile long         consumed;                    // sequence of the next event to drain
+	private volatile boolean      closing;
+
+	private final Sink            sink;                        // the first sink, refer setSink()
+	private final Thread          drainer;
+
+	/**
+	 * Creates the ring and starts its background thread.
+	 * @param capacity int number of events the ring holds, a power of 2
+	 * @param name String name of the background thread
+	 * @param sink Sink the events go to
+	 */
+	EventRing(int capacity, String name, Sink sink) {
+		if (Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity must be a power of 2: " + capacity);
+		this.mask       = capacity - 1;
+		this.levels     = new String[capacity];
+		this.messages   = new String[capacity];
+		this.objects    = new Object[capacity];
+		this.threads    = new Thread[capacity];
+		this.times      = new long[capacity];
+		this.args       = new long[3 * capacity];
+		this.argCounts  = new byte[capacity];
+		this.flags      = new byte[capacity];
+		this.published  = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) published.set(i, -1);
+		this.sink       = sink;
+
+		drainer = new Thread(new Runnable() {
+			public void run() {
+				_drain();
+			}
+		}, name);
+		drainer.setDaemon(true);
+		drainer.start();
+
+		// what is in the ring when the JVM exits is still written
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				close();
+			}
+		}, name + "-shutdown"));
+	}
+
+	/**
+	 * Puts an event into the ring, returns false if it was dropped since the ring is full.
+	 * @param flags int bit mask of the arguments passed as <tt>Double.doubleToRawLongBits()</tt>,
+	 *        or'ed with <tt>OBJECT</tt> if <tt>object</tt> is an argument
+	 */
+	boolean publish(String level, String message, Object object, int argCount, int flags, long a, long b, long c) {
+
+		long seq = _claim();
+		if (seq < 0) {
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		int i = (int) (seq & mask);
+		levels[i]       = level;
+		messages[i]     = message;
+		objects[i]      = object;
+		threads[i]      = Thread.currentThread();
+		times[i]        = System.currentTimeMillis();
+		args[3 * i]     = a;
+		args[3 * i + 1] = b;
+		args[3 * i + 2] = c;
+		argCounts[i]    = (byte) argCount;
+		this.flags[i]   = (byte) flags;
+		published.lazySet(i, seq);                 // the slot is written before it is seen published
+		return true;
+	}
+
+	/**
+	 * Returns the number of events dropped so far since the ring was full.
+	 */
+	long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Sends the events published from now on to another sink, the background thread closes
+	 * the old one once it has written the events published before. The switch goes through
+	 * the ring as an event without a message, waiting for a free slot rather than dropped.
+	 */
+	void setSink(Sink sink) {
+		long seq;
+		while ((seq = _claim()) < 0) {
+			if (closing) return;
+			LockSupport.parkNanos(IDLE_NANOS);
+		}
+		int i = (int) (seq & mask);
+		messages[i] = null;
+		objects[i]  = sink;
+		threads[i]  = Thread.currentThread();
+		published.lazySet(i, seq);
+	}
+
+	// returns the sequence of a free slot, -1 if the ring is full or closing
+	private long _claim() {
+		long seq;
+		do {
+			seq = next.get();
+			if (seq - consumed > mask || closing) return -1;
+		} while (!next.compareAndSet(seq, seq + 1));
+		return seq;
+	}
+
+	/**
+	 * Stops taking events and waits a while for the background thread to write the ones left.
+	 */
+	void close() {
+		closing = true;
+		LockSupport.unpark(drainer);
+		try {
+			drainer.join(CLOSE_MILLIS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void _drain() {
+
+		StringBuilder    line   = new StringBuilder(256);
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		Date             date   = new Date();
+		long             seen   = 0;                // dropped events reported so far
+		Sink             sink   = this.sink;
+
+		for (;;) {
+			long seq = consumed;
+			int  i   = (int) (seq & mask);
+
+			if (published.get(i) != seq) {
+				// nothing to drain, unless an event is being written right now
+				try {
+					long d = dropped.get();
+					if (d != seen) {
+						line.setLength(0);
+						sink.write(line.append("... ").append(d - seen).append(" events dropped, the ring was full"));
+						seen = d;
+					}
+					sink.flush();
+				}
+				catch (IOException e) {
+					// nowhere to report it, the events are lost
+				}
+				if (closing && seq == next.get()) {
+					_close(sink);
+					return;
+				}
+				LockSupport.parkNanos(IDLE_NANOS);
+				continue;
+			}
+
+			if (messages[i] == null) {               // switch of the sink
+				_close(sink);
+				sink       = (Sink) objects[i];
+				objects[i] = null;
+				threads[i] = null;
+				consumed   = seq + 1;
+				continue;
+			}
+
+			date.setTime(times[i]);
+			line.setLength(0);
+			line.append(format.format(date)).append(' ').append(levels[i])
+			    .append(" [").append(threads[i].getName()).append("] ");
+			_format(line, messages[i], objects[i], argCounts[i], flags[i], args[3 * i], args[3 * i + 1], args[3 * i + 2]);
+
+			objects[i] = null;                       // nothing is kept alive by the ring
+			threads[i] = null;
+			consumed   = seq + 1;                    // frees the slot
+
+			try {
+				sink.write(line);
+			}
+			catch (IOException e) {
+				// nowhere to report it, the event is lost
+			}
+		}
+	}
+
+	private static void _close(Sink sink) {
+		try {
+			sink.close();
+		}
+		catch (IOException e) {
+			// nowhere to report it
+		}
+	}
+
+	// appends the template with its {} replaced by the object, if any, and the arguments
+	private static void _format(StringBuilder line, String message, Object object, int argCount, int flags, long a, long b, long c) {
+		int arg = (flags & OBJECT) != 0 ? -1 : 0;
+		for (int from = 0; ; ) {
+			int at = message.indexOf("{}", from);
+			if (at < 0 || arg >= argCount) {
+				line.append(message, from, message.length());
+				return;
+			}
+			line.append(message, from, at);
+			if (arg < 0) line.append(object);
+			else {
+				long v = arg == 0 ? a : arg == 1 ? b : c;
+				if ((flags & (1 << arg)) != 0) line.append(Double.longBitsToDouble(v));
+				else                             line.append(v);
+			}
+			arg++;
+			from = at + 2;
+		}
+	}
+}
@@ -1,47 +1,176 @@
 package intellip.flwr.util;
 
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <p>The log of the library. A message is logged at a verbosity level and only kept when the
+ * level is at most the verbosity of the log, refer <tt>setVerbosity()</tt>. The verbosity
+ * starts at <tt>NORMAL</tt>, or at the value of <tt>-Dintellip.flwr.log.verbosity</tt>, and
+ * <tt>NOLOG</tt> turns the log off.</p>
+ *
+ * <p>Messages are templates whose <tt>{}</tt> are replaced by the arguments, an object
+ * first and then up to three <tt>long</tt> or <tt>double</tt> values:</p>
+ * <pre>
+ *   Log.log(Log.VERBOSE, "Iteration {}, cost {}", iteration, cost);
+ * </pre>
+ * <p>Below the verbosity such a call is a compare and a return, the arguments are neither
+ * boxed nor formatted. Above it, the message goes into a ring buffer and a background thread
+ * formats it and writes it out (refer <tt>EventRing</tt>), so the logging thread never waits
+ * for the screen or the disk and threads logging together do not lock each other. A message
+ * logged while the ring is full is dropped and the number dropped is logged later. The
+ * template must hence be a constant and an object logged must not change afterwards.</p>
+ *
+ * <p>The log goes to the screen (<tt>System.out</tt>) unless it is sent to a rolling file,
+ * refer <tt>setFile()</tt>, or <tt>-Dintellip.flwr.log.file</tt> names one; the messages
+ * still in the ring when the JVM exits are written out first.</p>
+ */
 public final class Log {
 
-	/*
-	 * The value of the below parameter tells the logger the verbocity required.
-	 * You can change this value to ensure only messages with the same verbocity is printed.
-	 * For example, if the verbocity is changed to 1, nothing will be printed
-	 */
-	private static final int DEFAULT_VERBOSE_LEVEL  = 1; 
-	
 	// verbocity levels
 	public  static final int NOLOG                  = 1;
 	public  static final int NORMAL                 = 2;
 	public  static final int VERBOSE                = 3;
 	public  static final int VERBOSE_DATA           = 4;
+
+	private static final String[] LEVEL_NAMES       = { null, null, "NORMAL", "VERBOSE", "DATA" };
+	private static final int      CAPACITY          = 1 << 14;           // messages in the ring
+	private static final long     DEFAULT_FILE_SIZE = 10L << 20;         // characters before the file is rolled over
+	private static final int      DEFAULT_BACKUPS   = 5;
+
+	private static volatile int   verbosity         = Integer.getInteger("intellip.flwr.log.verbosity", NORMAL);
+
 	// private constructor
 	private Log() {
 		throw new AssertionError();
 	}
 
+	// the ring is only created when the first message is logged [JCIP, pp. 348]
+	private static final class Holder {
+		static final EventRing RING = new EventRing(CAPACITY, "flwr-log", _initialSink());
+	}
+
+	private static EventRing.Sink _initialSink() {
+		String file = System.getProperty("intellip.flwr.log.file");
+		if (file != null) {
+			try {
+				return new RollingFile(new File(file), DEFAULT_FILE_SIZE, DEFAULT_BACKUPS);
+			}
+			catch (IOException e) {
+				System.err.println("Can not open the log file " + file + ", logging to the screen: " + e);
+			}
+		}
+		return EventRing.stream(System.out);
+	}
+
+	/**
+	 * Sets the verbosity of the log, messages of a higher level are not logged.
+	 * @param level int one of <tt>NOLOG</tt>, <tt>NORMAL</tt>, <tt>VERBOSE</tt>, <tt>VERBOSE_DATA</tt>
+	 */
+	public static void setVerbosity(int level) {
+		if (level < NOLOG || level > VERBOSE_DATA)
+			throw new IllegalArgumentException("Unknown verbosity level: " + level);
+		verbosity = level;
+	}
+
+	public static int getVerbosity() {
+		return verbosity;
+	}
+
+	/**
+	 * Returns true if messages of the level are logged, to guard building an argument.
+	 */
+	public static boolean isEnabled(int level) {
+		return level > NOLOG && level <= verbosity;
+	}
+
+	/**
+	 * Sends the log from now on to a file, rolled over once it is <tt>maxSize</tt> characters.
+	 * @param path String path of the file, appended to if it exists
+	 * @param maxSize long characters after which the file is renamed to <tt>path.1</tt>
+	 * @param backups int rolled over files to keep
+	 * @throws IOException if the file can not be opened
+	 */
+	public static void setFile(String path, long maxSize, int backups) throws IOException {
+		Holder.RING.setSink(new RollingFile(new File(path), maxSize, backups));
+	}
+
+	/**
+	 * Sends the log from now on to the screen, closing the file if there was one.
+	 */
+	public static void setScreen() {
+		Holder.RING.setSink(EventRing.stream(System.out));
+	}
+
+	/**
+	 * Returns the number of messages dropped so far since the ring buffer was full.
+	 */
+	public static long getDropped() {
+		return Holder.RING.dropped();
+	}
+
+	public static void log(int level, String msg) {
+		if (isEnabled(level)) Holder.RING.publish(LEVEL_NAMES[level], msg, null, 0, 0, 0, 0, 0);
+	}
+
+	public static void log(int level, String msg, long a) {
+		if (isEnabled(level)) Holder.RING.publish(LEVEL_NAMES[level], msg, null, 1, 0, a, 0, 0);
+	}
+
+	public static void log(int level, String msg, long a, long b) {
+		if (isEnabled(level)) Holder.RING.publish(LEVEL_NAMES[level], msg, null, 2, 0, a, b, 0);
+	}
+
+	public static void log(int level, String msg, long a, long b, long c) {
+		if (isEnabled(level)) Holder.RING.publish(LEVEL_NAMES[level], msg, null, 3, 0, a, b, c);
+	}
+
+	public static void log(int level, String msg, double a) {
+		if (isEnabled(level)) Holder.RING.publish(LEVEL_NAMES[level], msg, null, 1, 1, Double.doubleToRawLongBits(a), 0, 0);
+	}
+
+	public static void log(int level, String msg, long a, double b) {
+		if (isEnabled(level)) Holder.RING.publish(LEVEL_NAMES[level], msg, null, 2, 2, a, Double.doubleToRawLongBits(b), 0);
+	}
+
+	public static void log(int level, String msg, long a, long b, double c) {
+		if (isEnabled(level)) Holder.RING.publish(LEVEL_NAMES[level], msg, null, 3, 4, a, b, Double.doubleToRawLongBits(c));
+	}
+
+	public static void log(int level, String msg, long a, double b, double c) {
+		if (isEnabled(level)) Holder.RING.publish(LEVEL_NAMES[level], msg, null, 3, 6, a, Double.doubleToRawLongBits(b), Double.doubleToRawLongBits(c));
+	}
+
+	// the object replaces the first {}, the long the one after it
+	public static void log(int level, String msg, Object object) {
+		if (isEnabled(level)) Holder.RING.publish(LEVEL_NAMES[level], msg, object, 0, EventRing.OBJECT, 0, 0, 0);
+	}
+
+	public static void log(int level, String msg, Object object, long a) {
+		if (isEnabled(level)) Holder.RING.publish(LEVEL_NAMES[level], msg, object, 1, EventRing.OBJECT, a, 0, 0);
+	}
+
+	/**
+	 * Logs a message at <tt>NORMAL</tt> level.
+	 */
 	public static void write(String msg) {
-			System.out.println(msg);
+		log(NORMAL, msg);
 	}
 
+	/**
+	 * Logs a message at <tt>NORMAL</tt> level.
+	 * @deprecated the medium is chosen for the whole log, refer <tt>setFile()</tt>
+	 */
+	@Deprecated
 	public static void write(String msg, int medium) {
-		if ( medium == 0 ) // screen write
-		{
-			System.out.println(msg);
-		}
-		
-		if ( medium == 1 ) // file write
-		{
-			// TODO
-		}
-		
-		if ( medium == 3 ) // XML write
-		{
-			// TODO
-		}
+		log(NORMAL, msg);
 	}
-	
+
+	/**
+	 * Logs a message already built at the given level, prefer <tt>log()</tt> with a template
+	 * which builds nothing when the level is not logged.
+	 */
 	public static void trace(String msg, int verbose_level) {
-		if (verbose_level == DEFAULT_VERBOSE_LEVEL)
-			write(msg, 0);
+		log(verbose_level, msg);
 	}
 }
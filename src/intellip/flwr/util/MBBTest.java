@@ -1,5 +1,6 @@
 package intellip.flwr.util;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -19,7 +20,7 @@ public class MBBTest {
 	public static void main(String[] args) {
 		
 		final int BUCKET_SIZE = 10;
-		String filename = "/Users/akash/testfile.txt";
+		String filename = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "testfile.txt").getPath();
 		
 		try {
 			RandomAccessFile raf = new RandomAccessFile(filename, "rw");
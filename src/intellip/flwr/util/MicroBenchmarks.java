@@ -0,0 +1,364 @@
+package intellip.flwr.util;
+
+import intellip.flwr.ML.AbstractRelationalDataView;
+import intellip.flwr.ML.GDScalarParameterOptimizer;
+import intellip.flwr.ML.Tuple;
+import intellip.flwr.io.ConstWidthCache;
+import intellip.flwr.io.IndexCache;
+import intellip.flwr.io.LruCache;
+import intellip.flwr.math.LargeDoubleMatrix;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Micro benchmarks of the <tt>io</tt>, <tt>math</tt> and <tt>ML</tt> packages, to compare
+ * the numbers before and after a change.
+ *
+ * <pre>
+ * usage: MicroBenchmarks [-dir directory] [-warmup n] [-iterations n] [-time millis]
+ *                        [-forks n] [-csv file] [-list] [regex]
+ * </pre>
+ * Runs the benchmarks whose name contains a match of <tt>regex</tt> (default is all of them),
+ * each with <tt>-warmup</tt> (5) unmeasured and <tt>-iterations</tt> (10) measured
+ * iterations of <tt>-time</tt> (1000) milliseconds, refer <tt>Bench</tt>, and reports the
+ * mean time per operation with its 99.9% confidence interval. Every benchmark runs in
+ * <tt>-forks</tt> (1) JVMs of its own, started with the options of this one, so the
+ * benchmarks run before do not change how the JIT compiler treats it; 0 runs them all in
+ * this JVM. The caches and matrices are created in a sub-directory of <tt>-dir</tt>,
+ * <tt>-Dintellip.flwr.bench.dir</tt> or <tt>java.io.tmpdir</tt>, which is removed
+ * afterwards. <tt>-csv</tt> appends the results to a file. All data is generated from
+ * fixed seeds, so the runs differ only in what was changed.
+ */
+public class MicroBenchmarks {
+
+	private static final long   SEED         = 42;
+	private static final int    RECORDS      = 1 << 10;      // distinct records put, a power of 2
+	private static final int    INDICES      = 1 << 16;      // random indices read, a power of 2
+	private static final long   GET_BYTES    = 64L << 20;    // bytes put before the gets
+	private static final int[]  RECORD_SIZES = { 100, 1000, 10000 };
+	private static final long[] BLOCK_SIZES  = { 1 << 16, 1 << 20 };
+	private static final int[]  WIDTHS       = { 16, 256 };
+	private static final int    MATRIX_SIZE  = 2048;         // rows and columns of the matrix
+	private static final int    LRU_SIZE     = 1 << 10;
+
+	private String dir        = System.getProperty("intellip.flwr.bench.dir", System.getProperty("java.io.tmpdir"));
+	private int    warmups    = 5;
+	private int    iterations = 10;
+	private long   millis     = 1000;
+	private int    forks      = 1;
+	private String csv;
+	private String filter     = "";
+	private String only;                                     // the one benchmark a fork runs
+	private boolean list;
+
+	public static void main (String[] args) throws Exception {
+
+		MicroBenchmarks b = new MicroBenchmarks();
+		for (int i = 0; i < args.length; i++) {
+			if      (args[i].equals("-dir"))        b.dir        = args[++i];
+			else if (args[i].equals("-warmup"))     b.warmups    = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-iterations")) b.iterations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-time"))       b.millis     = Long.parseLong(args[++i]);
+			else if (args[i].equals("-forks"))      b.forks      = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-csv"))        b.csv        = args[++i];
+			else if (args[i].equals("-list"))       b.list       = true;
+			else if (args[i].equals("-only"))       b.only       = args[++i];
+			else if (args[i].startsWith("-"))       throw new IllegalArgumentException("Unknown option " + args[i]);
+			else                                    b.filter     = args[i];
+		}
+		if (b.iterations < 1) throw new IllegalArgumentException("At least one iteration is needed");
+		b._run(args);
+	}
+
+	private void _run(String[] args) throws Exception {
+
+		Pattern pattern = Pattern.compile(filter);
+		List<Bench> selected = new ArrayList<Bench>();
+		for (Bench bench : _benchmarks())
+			if (only != null ? bench.name.equals(only) : pattern.matcher(bench.name).find()) selected.add(bench);
+
+		if (list) {
+			for (Bench bench : selected) System.out.println(bench.name);
+			return;
+		}
+
+		if (only == null) {
+			System.out.printf("%s %s, %d warmup and %d measured iterations of %d ms, %d fork(s)%n",
+					System.getProperty("java.vm.name"), System.getProperty("java.version"), warmups, iterations, millis, forks);
+			System.out.printf("%-44s %14s %10s %16s%n", "benchmark", "ns/op", "error", "ops/s");
+		}
+
+		for (Bench bench : selected) {
+			if (forks > 0 && only == null) {
+				for (int f = 0; f < forks; f++) _fork(args, bench.name);
+				continue;
+			}
+
+			File runDir = new File(dir, "flwr-bench-" + System.nanoTime());
+			if (!runDir.mkdirs()) throw new IllegalStateException("Can not create " + runDir);
+			double[] nanosPerOp;
+			try {
+				bench.setUp(runDir);
+				try {
+					nanosPerOp = bench.run(warmups, iterations, millis);
+				}
+				finally {
+					bench.tearDown();
+				}
+			}
+			finally {
+				_delete(runDir);
+			}
+			_report(bench.name, Bench.mean(nanosPerOp), Bench.error(nanosPerOp));
+		}
+	}
+
+	// runs one benchmark in a new JVM, with the options of this one
+	private void _fork(String[] args, String name) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(MicroBenchmarks.class.getName());
+		for (String arg : args) command.add(arg);
+		command.add("-only");
+		command.add(name);
+
+		int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+		if (exit != 0) throw new IllegalStateException("The fork running " + name + " failed with " + exit);
+	}
+
+	private void _report(String name, double mean, double error) throws IOException {
+		System.out.printf("%-44s %14.1f %10.1f %,16.0f%n", name, mean, error, 1e9 / mean);
+		if (csv == null) return;
+		PrintWriter out = new PrintWriter(new FileWriter(csv, true));
+		try {
+			out.printf("\"%s\",%.3f,%.3f,%d,%d%n", name, mean, error, iterations, millis);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static void _delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) for (File child : files) _delete(child);
+		f.delete();
+	}
+
+	// records of the given size with random content
+	private static byte[][] _records(int size) {
+		Random rand = new Random(SEED);
+		byte[][] records = new byte[RECORDS][size];
+		for (byte[] record : records) rand.nextBytes(record);
+		return records;
+	}
+
+	// indices into 0 - bound in random order
+	private static int[] _indices(int bound) {
+		Random rand = new Random(SEED);
+		int[] indices = new int[INDICES];
+		for (int i = 0; i < INDICES; i++) indices[i] = rand.nextInt(bound);
+		return indices;
+	}
+
+	private static String _path(File dir) {
+		return dir.getPath() + File.separator;
+	}
+
+	private List<Bench> _benchmarks() {
+
+		List<Bench> benchmarks = new ArrayList<Bench>();
+
+		for (final int size : RECORD_SIZES)
+			for (final long blockSize : BLOCK_SIZES) {
+
+				// appends to a new cache every iteration, so the files do not keep on growing
+				benchmarks.add(new Bench("IndexCache.put record=" + size + " block=" + blockSize) {
+					private byte[][]   records;
+					private File       dir;
+					private IndexCache cache;
+
+					void setUp(File dir) {
+						this.dir     = dir;
+						this.records = _records(size);
+					}
+					void reset() throws Exception {
+						tearDown();
+						for (File f : dir.listFiles()) f.delete();
+						cache = new IndexCache.Builder(_path(dir), _path(dir)).withBlockSize(blockSize).build();
+					}
+					long op(int i) throws Exception {
+						return cache.put(records[i & (RECORDS - 1)]);
+					}
+					void tearDown() throws Exception {
+						if (cache != null) cache.close();
+						cache = null;
+					}
+				});
+
+				benchmarks.add(new Bench("IndexCache.get record=" + size + " block=" + blockSize) {
+					private IndexCache cache;
+					private long[]     handlers;
+					private int[]      indices;
+
+					void setUp(File dir) throws Exception {
+						byte[][] records = _records(size);
+						cache    = new IndexCache.Builder(_path(dir), _path(dir)).withBlockSize(blockSize).build();
+						handlers = new long[(int) Math.min(INDICES, GET_BYTES / size)];
+						for (int i = 0; i < handlers.length; i++) handlers[i] = cache.put(records[i & (RECORDS - 1)]);
+						indices  = _indices(handlers.length);
+					}
+					long op(int i) throws Exception {
+						return cache.get(handlers[indices[i & (INDICES - 1)]]).length;
+					}
+					void tearDown() throws Exception {
+						cache.close();
+					}
+				});
+			}
+
+		for (final int width : WIDTHS) {
+
+			benchmarks.add(new Bench("ConstWidthCache.set width=" + width) {
+				private byte[][]        records;
+				private File            dir;
+				private ConstWidthCache cache;
+
+				void setUp(File dir) {
+					this.dir     = dir;
+					this.records = _records(width);
+				}
+				void reset() throws Exception {
+					tearDown();
+					for (File f : dir.listFiles()) f.delete();
+					cache = new ConstWidthCache(_path(dir), BLOCK_SIZES[1]);
+				}
+				long op(int i) throws Exception {
+					return cache.set(records[i & (RECORDS - 1)]);
+				}
+				void tearDown() throws Exception {
+					if (cache != null) cache.close();
+					cache = null;
+				}
+			});
+
+			benchmarks.add(new Bench("ConstWidthCache.get width=" + width) {
+				private ConstWidthCache cache;
+				private long[]          positions;
+				private int[]           indices;
+
+				void setUp(File dir) throws Exception {
+					byte[][] records = _records(width);
+					cache     = new ConstWidthCache(_path(dir), BLOCK_SIZES[1]);
+					positions = new long[INDICES];
+					for (int i = 0; i < INDICES; i++) positions[i] = cache.set(records[i & (RECORDS - 1)]);
+					indices   = _indices(INDICES);
+				}
+				long op(int i) {
+					return cache.get(positions[indices[i & (INDICES - 1)]]).length;
+				}
+				void tearDown() throws Exception {
+					cache.close();
+				}
+			});
+		}
+
+		// every key is in the cache, the keys are boxed up front
+		benchmarks.add(new Bench("LruCache.get hit size=" + LRU_SIZE) {
+			private LruCache<Integer, Integer> cache;
+			private Integer[]                  keys;
+
+			void setUp(File dir) {
+				cache = new LruCache<Integer, Integer>(LRU_SIZE);
+				keys  = new Integer[INDICES];
+				for (int i = 0; i < LRU_SIZE; i++) cache.put(i, i);
+				int[] indices = _indices(LRU_SIZE);
+				for (int i = 0; i < INDICES; i++) keys[i] = indices[i];
+			}
+			long op(int i) {
+				return cache.get(keys[i & (INDICES - 1)]);
+			}
+		});
+
+		// one operation reads a whole row, or column, of the matrix; rows are laid out one after the other
+		for (final boolean byRow : new boolean[] { true, false }) {
+			benchmarks.add(new Bench("LargeDoubleMatrix." + (byRow ? "row" : "column") + " size=" + MATRIX_SIZE) {
+				private LargeDoubleMatrix matrix;
+
+				void setUp(File dir) throws Exception {
+					matrix = new LargeDoubleMatrix(_path(dir) + "matrix", MATRIX_SIZE, MATRIX_SIZE);
+					Random rand = new Random(SEED);
+					for (int y = 0; y < MATRIX_SIZE; y++)
+						for (int x = 0; x < MATRIX_SIZE; x++) matrix.set(x, y, rand.nextDouble());
+				}
+				long op(int i) {
+					int    line = i & (MATRIX_SIZE - 1);
+					double sum  = 0;
+					if (byRow) for (int x = 0; x < MATRIX_SIZE; x++) sum += matrix.get(x, line);
+					else       for (int y = 0; y < MATRIX_SIZE; y++) sum += matrix.get(line, y);
+					return Double.doubleToRawLongBits(sum);
+				}
+				void tearDown() throws Exception {
+					matrix.close();
+				}
+			});
+		}
+
+		final byte[] bytes = _records(64)[0];
+
+		benchmarks.add(new Bench("Base.longToBytes") {
+			long op(int i) {
+				return Base.longToBytes(i)[7];
+			}
+		});
+		benchmarks.add(new Bench("Base.bytesToLong") {
+			long op(int i) {
+				return Base.bytesToLong(bytes, i & 31, 8);
+			}
+		});
+		benchmarks.add(new Bench("Base.intToBytes") {
+			long op(int i) {
+				return Base.intToBytes(i)[3];
+			}
+		});
+		benchmarks.add(new Bench("Base.bytesToInt") {
+			long op(int i) {
+				return Base.bytesToInt(bytes, i & 31, 4);
+			}
+		});
+		benchmarks.add(new Bench("Base.bytesToChars len=32") {
+			long op(int i) {
+				return Base.bytesToChars(bytes, i & 31, 32)[15];
+			}
+		});
+
+		// one step of gradient descent over the sample data view, as in GradientDescent
+		benchmarks.add(new Bench("GDScalarParameterOptimizer.optimize") {
+			private GDScalarParameterOptimizer engine;
+			private Tuple                      theta;
+
+			void setUp(File dir) {
+				engine = new GDScalarParameterOptimizer();
+				engine.setSource(new AbstractRelationalDataView());
+				engine.SetLearnRate(0.2);
+				theta  = new Tuple(3);
+				for (int k = 0; k < 3; k++) theta.add(0);
+			}
+			long op(int i) {
+				return Double.doubleToRawLongBits(engine.optimize(theta).get(0));
+			}
+		});
+
+		return benchmarks;
+	}
+}
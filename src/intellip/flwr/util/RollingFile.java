@@ -0,0 +1,92 @@
+package intellip.flwr.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * <p>Sink writing the events of an <tt>EventRing</tt> to a file which is rolled over once it
+ * has grown to a maximum size: <tt>log</tt> is renamed to <tt>log.1</tt>, <tt>log.1</tt> to
+ * <tt>log.2</tt> and so on, the oldest one is deleted, and a new <tt>log</tt> is started. An
+ * existing file is appended to. The size is counted in characters, which is the size in
+ * bytes as long as the lines are ASCII.</p>
+ */
+final class RollingFile implements EventRing.Sink {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final File   file;
+	private final long   maxSize;                // characters after which the file is rolled over
+	private final int    backups;                // rolled over files kept
+	private Writer       out;
+	private long         size;
+	private char[]       chars = new char[256];  // the line is copied here, not turned into a String
+
+	/**
+	 * Opens the file for appending.
+	 * @param file File the log goes to
+	 * @param maxSize long characters after which the file is rolled over
+	 * @param backups int rolled over files to keep, 0 to only keep the current file
+	 */
+	RollingFile(File file, long maxSize, int backups) throws IOException {
+		if (maxSize <= 0) throw new IllegalArgumentException("Max size must be positive: " + maxSize);
+		if (backups < 0)  throw new IllegalArgumentException("Backups must not be negative: " + backups);
+		this.file    = file;
+		this.maxSize = maxSize;
+		this.backups = backups;
+		_open();
+	}
+
+	public void write(StringBuilder line) throws IOException {
+		int len = line.length();
+		if (len + 1 > chars.length) chars = new char[Math.max(len + 1, 2 * chars.length)];
+		line.getChars(0, len, chars, 0);
+		chars[len] = '\n';
+
+		if (size > 0 && size + len + 1 > maxSize) _roll();
+		out.write(chars, 0, len + 1);
+		size += len + 1;
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private void _open() throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can not create the log directory " + dir);
+		size = file.length();
+		out  = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	private void _roll() throws IOException {
+		out.close();
+		if (backups == 0) {
+			Files.delete(file.toPath());
+		}
+		else {
+			Files.deleteIfExists(_backup(backups).toPath());
+			for (int i = backups - 1; i >= 1; i--) {
+				File f = _backup(i);
+				if (f.exists()) Files.move(f.toPath(), _backup(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.move(file.toPath(), _backup(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		_open();
+	}
+
+	private File _backup(int i) {
+		return new File(file.getPath() + "." + i);
+	}
+}
@@ -0,0 +1,99 @@
+package intellip.flwr.util;
+
+import intellip.flwr.io.BlockStorage;
+import intellip.flwr.io.ConstWidthCache;
+import intellip.flwr.io.IndexCache;
+import intellip.flwr.math.LargeDoubleMatrix;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Compares the block storages (memory maps, positional channel reads and writes, direct
+ * buffers) of <tt>IndexCache</tt>, <tt>ConstWidthCache</tt> and <tt>LargeDoubleMatrix</tt>,
+ * refer <tt>BlockStorage</tt>.
+ *
+ * <pre>
+ * usage: StorageBenchmark [directory] [rows]
+ * </pre>
+ * Every storage runs in its own sub-directory of <tt>directory</tt> (default is
+ * <tt>java.io.tmpdir</tt>) which is removed afterwards. The matrix is a square of
+ * <tt>rows</tt> doubles a side, read and written at random cells.
+ */
+public class StorageBenchmark {
+
+	private static final BlockStorage[] STORAGES = { BlockStorage.MMAP, BlockStorage.CHANNEL, BlockStorage.MEMORY };
+	private static final int            WIDTH    = 64;       // bytes of a ConstWidthCache item
+
+	public static void main (String[] args) throws Exception {
+
+		String dir  = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+		int    rows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		if (!dir.endsWith(File.separator)) dir += File.separator;
+
+		// items of 16 - 1024 random bytes
+		Random rand = new Random(42);
+		byte[][] data = new byte[rows][];
+		long rawBytes = 0;
+		for (int i = 0; i < rows; i++) {
+			data[i] = new byte[16 + rand.nextInt(1009)];
+			rand.nextBytes(data[i]);
+			rawBytes += data[i].length;
+		}
+		byte[] item = new byte[WIDTH];
+		int    side = Math.min(rows, 1 << 12);             // at most 128 MB of matrix
+
+		System.out.printf("%,d rows, %,d bytes, matrix %,d x %,d%n", rows, rawBytes, side, side);
+		System.out.printf("%-8s %12s %12s %12s %12s %12s %12s%n", "storage",
+				"put MB/s", "rnd get/s", "cw set/s", "cw get/s", "mx set/s", "mx get/s");
+
+		for (BlockStorage storage : STORAGES) {
+
+			File runDir = new File(dir + "flwr-storage-" + System.nanoTime());
+			if (!runDir.mkdirs()) throw new IllegalStateException("Can not create " + runDir);
+			String path = runDir.getPath() + File.separator;
+
+			// IndexCache
+			IndexCache cache = new IndexCache.Builder(path, path).withBlockSize(1 << 16).withStorage(storage).build();
+			long start = System.nanoTime();
+			long[] handlers = cache.putAll(data);
+			long putTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < rows; i++) cache.get(handlers[rand.nextInt(rows)]);
+			long getTime = System.nanoTime() - start;
+			cache.close();
+
+			// ConstWidthCache
+			ConstWidthCache cw = new ConstWidthCache(path, 1 << 16, storage);
+			long[] positions = new long[rows];
+			start = System.nanoTime();
+			for (int i = 0; i < rows; i++) positions[i] = cw.set(item);
+			long cwSetTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < rows; i++) cw.get(positions[rand.nextInt(rows)]);
+			long cwGetTime = System.nanoTime() - start;
+			cw.close();
+
+			// LargeDoubleMatrix
+			LargeDoubleMatrix matrix = new LargeDoubleMatrix(path + "matrix.bin", side, side, storage);
+			start = System.nanoTime();
+			for (int i = 0; i < rows; i++) matrix.set(rand.nextInt(side), rand.nextInt(side), i);
+			long mxSetTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < rows; i++) matrix.get(rand.nextInt(side), rand.nextInt(side));
+			long mxGetTime = System.nanoTime() - start;
+			matrix.close();
+
+			for (File f : runDir.listFiles()) f.delete();
+			runDir.delete();
+
+			System.out.printf("%-8s %12.1f %,12.0f %,12.0f %,12.0f %,12.0f %,12.0f%n", storage,
+					rawBytes / 1e6 / (putTime / 1e9), rows / (getTime / 1e9),
+					rows / (cwSetTime / 1e9), rows / (cwGetTime / 1e9),
+					rows / (mxSetTime / 1e9), rows / (mxGetTime / 1e9));
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package intellip.flwr.util;
+
+/**
+ * <p>Tracing of the hot paths of the caches. Tracing is off unless the JVM is started with
+ * <tt>-Dintellip.flwr.trace=true</tt>, and every trace point is written as</p>
+ * <pre>
+ *   if (Trace.ENABLED) Trace.event("[PUT] pos {}, len {}", pos, len);
+ * </pre>
+ * <p>Since <tt>ENABLED</tt> is a <tt>static final</tt> constant, the JIT compiler drops the
+ * whole statement when tracing is off: no string is built, no argument is boxed, nothing is
+ * called. When tracing is on, the events go through a ring buffer to a background thread
+ * which formats them and prints them to <tt>System.err</tt>, refer <tt>EventRing</tt>, so
+ * the traced thread only pays for filling a slot. The arguments are formatted by the
+ * background thread; an object argument must hence not change once it is traced.</p>
+ */
+public final class Trace {
+
+	public  static final boolean ENABLED  = Boolean.getBoolean("intellip.flwr.trace");
+	private static final int     CAPACITY = 1 << 16;   // events in the ring
+	private static final String  LEVEL    = "TRACE";
+
+	// private constructor
+	private Trace() {
+		throw new AssertionError();
+	}
+
+	// the ring is only created when the first event is traced [JCIP, pp. 348]
+	private static final class Holder {
+		static final EventRing RING = new EventRing(CAPACITY, "flwr-trace", EventRing.stream(System.err));
+	}
+
+	public static void event(String message) {
+		if (ENABLED) Holder.RING.publish(LEVEL, message, null, 0, 0, 0, 0, 0);
+	}
+
+	public static void event(String message, long a) {
+		if (ENABLED) Holder.RING.publish(LEVEL, message, null, 1, 0, a, 0, 0);
+	}
+
+	public static void event(String message, long a, long b) {
+		if (ENABLED) Holder.RING.publish(LEVEL, message, null, 2, 0, a, b, 0);
+	}
+
+	public static void event(String message, long a, long b, long c) {
+		if (ENABLED) Holder.RING.publish(LEVEL, message, null, 3, 0, a, b, c);
+	}
+
+	// the object replaces the first {}, the longs the ones after it
+	public static void event(String message, Object object) {
+		if (ENABLED) Holder.RING.publish(LEVEL, message, object, 0, EventRing.OBJECT, 0, 0, 0);
+	}
+
+	public static void event(String message, Object object, long a) {
+		if (ENABLED) Holder.RING.publish(LEVEL, message, object, 1, EventRing.OBJECT, a, 0, 0);
+	}
+}